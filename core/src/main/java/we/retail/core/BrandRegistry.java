@@ -0,0 +1,113 @@
+package we.retail.core;
+
+import com.day.cq.wcm.api.Page;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.util.WeRetailHelper;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>BrandRegistry</code> maps the site roots (such as <code>/content/we-retail/us</code>) to the brand of
+ * the products below them, i.e. to the title of the root page.
+ *
+ * There are only a few site roots, so the brands are kept for good once read, and a brand lookup is a single
+ * map hit.  A brand is discarded when its root page (or its content) changes, and read again on next use.
+ */
+@Component
+@Service({ BrandRegistry.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = "/content/we-retail"),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" })
+})
+public class BrandRegistry implements ResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(BrandRegistry.class);
+
+    /**
+     * Level of the site roots, as in {@link Page#getAbsoluteParent(int)}.
+     */
+    static final int SITE_ROOT_LEVEL = 2;
+
+    /**
+     * Sub-service used to read the site root pages.
+     */
+    static final String SUBSERVICE = "products";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final Map<String, String> brands = new ConcurrentHashMap<String, String>();
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        brands.clear();
+    }
+
+    /**
+     * Return the brand of the products below the site root <code>siteRootPath</code>, or an empty string if
+     * there is no such page or if it has no title.
+     */
+    public String getBrand(String siteRootPath) {
+        String brand = brands.get(siteRootPath);
+        if (brand == null) {
+            brand = readBrand(siteRootPath);
+            if (brand != null) {
+                brands.put(siteRootPath, brand);
+            } else {
+                brand = "";
+            }
+        }
+        return brand;
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            for (Iterator<String> iterator = brands.keySet().iterator(); iterator.hasNext();) {
+                String siteRootPath = iterator.next();
+                if (WeRetailHelper.isAncestorOrSelf(path, siteRootPath)
+                        || WeRetailHelper.isAncestorOrSelf(siteRootPath + WeRetailHelper.JCR_CONTENT_SEGMENT, path)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the title of the root page, an empty string if there is none, or <code>null</code> if it
+     * cannot be read at the moment.
+     */
+    private String readBrand(String siteRootPath) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = WeRetailHelper.getServiceResourceResolver(resolverFactory, SUBSERVICE);
+            Resource resource = resolver.getResource(siteRootPath);
+            String brand = WeRetailHelper.getPageTitle(resource != null ? resource.adaptTo(Page.class) : null);
+            return WeRetailHelper.isEmpty(brand) ? "" : brand;
+        } catch (LoginException e) {
+            log.error("Cannot read the brand of " + siteRootPath, e);
+            return null;
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package we.retail.core;
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.PaymentMethod;
+import com.adobe.cq.commerce.api.ShippingMethod;
+import com.day.cq.commons.jcr.JcrConstants;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import we.retail.core.util.WeRetailHelper;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <code>CheckoutMethodCatalog</code> keeps the shipping and payment methods offered by the we.Retail
+ * commerce services, so that cart and checkout pages do not enumerate them from the repository on every
+ * render.
+ *
+ * The methods are read once into an immutable snapshot shared by all the commerce service instances.  The
+ * snapshot is discarded when anything changes below the method roots, and read again on next use.  The
+ * methods of a snapshot are plain copies, so no repository session is held between loads.
+ */
+@Component
+@Service({ CheckoutMethodCatalog.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = {
+                CheckoutMethodCatalog.SHIPPING_METHODS_ROOT, CheckoutMethodCatalog.PAYMENT_METHODS_ROOT }),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" })
+})
+public class CheckoutMethodCatalog implements ResourceChangeListener {
+
+    static final String SHIPPING_METHODS_ROOT = "/etc/commerce/shipping-methods/geometrixx-outdoors";
+    static final String PAYMENT_METHODS_ROOT = "/etc/commerce/payment-methods/geometrixx-outdoors";
+
+    /**
+     * Sub-service used to read the shipping and payment methods.
+     */
+    static final String SUBSERVICE = "methods";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private volatile Snapshot snapshot;
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        invalidate();
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        invalidate();
+    }
+
+    /**
+     * Return the current snapshot, reading the methods with the commerce services of <code>factory</code> if
+     * there is none.
+     */
+    Snapshot getSnapshot(WeRetailCommerceServiceFactory factory) throws CommerceException {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = load(factory);
+            }
+            return snapshot;
+        }
+    }
+
+    private synchronized void invalidate() {
+        snapshot = null;
+    }
+
+    private Snapshot load(WeRetailCommerceServiceFactory factory) throws CommerceException {
+        ResourceResolver resolver;
+        try {
+            resolver = WeRetailHelper.getServiceResourceResolver(resolverFactory, SUBSERVICE);
+        } catch (LoginException e) {
+            throw new CommerceException("Cannot read the shipping and payment methods", e);
+        }
+        try {
+            Resource root = resolver.getResource("/etc/commerce");
+            if (root == null) {
+                throw new CommerceException("Cannot read the shipping and payment methods");
+            }
+            WeRetailCommerceServiceImpl commerceService = (WeRetailCommerceServiceImpl) factory.getCommerceService(root);
+            List<ShippingMethod> shippingMethods = new ArrayList<ShippingMethod>();
+            for (ShippingMethod method : commerceService.enumerate(SHIPPING_METHODS_ROOT, ShippingMethod.class)) {
+                shippingMethods.add(new CheckoutMethod(method.getPath(), method.getPredicate(), method.getTitle(),
+                        method.getDescription(), method.getImageUrl(null), method.getUIPath(), method.getRedirectUrl(),
+                        readProperties(resolver, method.getPath())));
+            }
+            List<PaymentMethod> paymentMethods = new ArrayList<PaymentMethod>();
+            for (PaymentMethod method : commerceService.enumerate(PAYMENT_METHODS_ROOT, PaymentMethod.class)) {
+                paymentMethods.add(new CheckoutMethod(method.getPath(), method.getPredicate(), method.getTitle(),
+                        method.getDescription(), method.getImageUrl(null), method.getUIPath(), method.getRedirectUrl(),
+                        readProperties(resolver, method.getPath())));
+            }
+            return new Snapshot(Collections.unmodifiableList(shippingMethods), Collections.unmodifiableList(paymentMethods));
+        } finally {
+            resolver.close();
+        }
+    }
+
+    /**
+     * Copy the properties of the method at <code>path</code>, taken from its content if it is a page.  Binary
+     * properties are left out, as they cannot be read once the resolver is closed.
+     */
+    private static ValueMap readProperties(ResourceResolver resolver, String path) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        Resource resource = path != null ? resolver.getResource(path) : null;
+        if (resource != null) {
+            Resource content = resource.getChild(JcrConstants.JCR_CONTENT);
+            for (Map.Entry<String, Object> property : ResourceUtil.getValueMap(content != null ? content : resource).entrySet()) {
+                if (!(property.getValue() instanceof InputStream)) {
+                    properties.put(property.getKey(), property.getValue());
+                }
+            }
+        }
+        return new ValueMapDecorator(Collections.unmodifiableMap(properties));
+    }
+
+    static final class Snapshot {
+        private final List<ShippingMethod> shippingMethods;
+        private final List<PaymentMethod> paymentMethods;
+
+        Snapshot(List<ShippingMethod> shippingMethods, List<PaymentMethod> paymentMethods) {
+            this.shippingMethods = shippingMethods;
+            this.paymentMethods = paymentMethods;
+        }
+
+        List<ShippingMethod> getShippingMethods() {
+            return shippingMethods;
+        }
+
+        List<PaymentMethod> getPaymentMethods() {
+            return paymentMethods;
+        }
+    }
+
+    /**
+     * An immutable copy of a shipping or payment method.
+     */
+    static final class CheckoutMethod implements ShippingMethod, PaymentMethod {
+        private final String path;
+        private final String predicate;
+        private final String title;
+        private final String description;
+        private final String imageUrl;
+        private final String uiPath;
+        private final String redirectUrl;
+        private final ValueMap properties;
+
+        CheckoutMethod(String path, String predicate, String title, String description, String imageUrl,
+                       String uiPath, String redirectUrl, ValueMap properties) {
+            this.path = path;
+            this.predicate = predicate;
+            this.title = title;
+            this.description = description;
+            this.imageUrl = imageUrl;
+            this.uiPath = uiPath;
+            this.redirectUrl = redirectUrl;
+            this.properties = properties;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getPredicate() {
+            return predicate;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Return the URL of the image of the method, or <code>defaultImage</code> if it has none.
+         */
+        public String getImageUrl(String defaultImage) {
+            return imageUrl != null ? imageUrl : defaultImage;
+        }
+
+        public String getUIPath() {
+            return uiPath;
+        }
+
+        public String getRedirectUrl() {
+            return redirectUrl;
+        }
+
+        public <T> T getProperty(String name, Class<T> type) {
+            return properties.get(name, type);
+        }
+    }
+}
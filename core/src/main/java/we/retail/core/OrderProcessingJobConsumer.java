@@ -0,0 +1,220 @@
+package we.retail.core;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.event.jobs.Job;
+import org.apache.sling.event.jobs.consumer.JobConsumer;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>OrderProcessingJobConsumer</code> processes the orders queued by
+ * {@link WeRetailCommerceSessionImpl#initiateOrderProcessing(String)}, so that the checkout request returns
+ * as soon as the order is persisted.
+ *
+ * The jobs are processed asynchronously: their status updates are collected and written by a single thread,
+ * which saves up to {@link #BATCH_SIZE} orders at once.  A job only succeeds once its order is saved; if a
+ * batch cannot be saved, its orders are saved one by one, and the jobs which still fail are retried by the
+ * job queue.  The parallelism and retries
+ * are those of the job queue the {@link #TOPIC} is assigned to (see the
+ * <code>org.apache.sling.event.jobs.QueueConfiguration-weretailorders</code> configuration); the queue's
+ * parallelism also bounds the size of the batches.
+ */
+@Component(metatype = true,
+        label = "we.Retail Order Processing",
+        description = "Processes the placed we.Retail orders")
+@Service(JobConsumer.class)
+@Properties(value = {
+        @Property(name = JobConsumer.PROPERTY_TOPICS, value = OrderProcessingJobConsumer.TOPIC, propertyPrivate = true)
+})
+public class OrderProcessingJobConsumer implements JobConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderProcessingJobConsumer.class);
+
+    public static final String TOPIC = "we/retail/order/processing";
+
+    /**
+     * Job property holding the path of the order to process.
+     */
+    public static final String PROPERTY_ORDER_PATH = "orderPath";
+
+    static final String STATUS_PROCESSING = "Processing";
+
+    @Property(intValue = 50, label = "Batch size", description = "Maximum number of orders whose status is saved at once")
+    public static final String BATCH_SIZE = "order.processing.batchSize";
+
+    @Property(intValue = 100, label = "Batch delay", description = "Time in milliseconds a batch waits for more orders before it is saved")
+    public static final String BATCH_DELAY = "order.processing.batchDelay";
+
+    /**
+     * Time in milliseconds deactivation waits for the writer to save the orders queued so far.
+     */
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    /**
+     * The service writing the order statuses, which unlike the readers needs write access to the orders.
+     */
+    static final String SUBSERVICE = "order-writer";
+
+    /**
+     * Marker queued on deactivation, after which the writer stops.
+     */
+    private static final PendingOrder STOP = new PendingOrder(null, null);
+
+    @Reference
+    private SlingRepository repository;
+
+    private final BlockingQueue<PendingOrder> pendingOrders = new LinkedBlockingQueue<PendingOrder>();
+
+    private int batchSize;
+    private long batchDelay;
+    private volatile Thread writer;
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) {
+        batchSize = Math.max(1, PropertiesUtil.toInteger(context.getProperties().get(BATCH_SIZE), 50));
+        batchDelay = Math.max(0, PropertiesUtil.toLong(context.getProperties().get(BATCH_DELAY), 100));
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeStatuses();
+            }
+        }, "we.Retail order processing");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() throws InterruptedException {
+        Thread thread = writer;
+        writer = null;
+        // the writer is not interrupted, as that would close the repository session it is using: it saves the
+        // orders queued so far and stops when it reaches the marker
+        pendingOrders.add(STOP);
+        thread.join(SHUTDOWN_TIMEOUT);
+        // hand the jobs which were not written in time back to the job queue
+        List<PendingOrder> orders = new ArrayList<PendingOrder>();
+        pendingOrders.drainTo(orders);
+        for (PendingOrder order : orders) {
+            if (order == STOP) {
+                // the writer is still saving a batch, let it stop once it is done
+                pendingOrders.add(STOP);
+            } else {
+                order.handler.failed();
+            }
+        }
+    }
+
+    public JobResult process(Job job) {
+        String orderPath = job.getProperty(PROPERTY_ORDER_PATH, String.class);
+        if (orderPath == null) {
+            log.error("Job {} has no order path", job.getId());
+            return JobResult.CANCEL;
+        }
+        AsyncHandler handler = job.getProperty(PROPERTY_JOB_ASYNC_HANDLER, AsyncHandler.class);
+        if (handler == null || writer == null) {
+            return write(new PendingOrder(orderPath, null)) ? JobResult.OK : JobResult.FAILED;
+        }
+        pendingOrders.add(new PendingOrder(orderPath, handler));
+        return JobResult.ASYNC;
+    }
+
+    /**
+     * Write the pending status updates in batches, until the {@link #STOP} marker is reached.
+     */
+    private void writeStatuses() {
+        List<PendingOrder> batch = new ArrayList<PendingOrder>(batchSize);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                PendingOrder order = pendingOrders.take();
+                long deadline = System.currentTimeMillis() + batchDelay;
+                while (order != null && order != STOP) {
+                    batch.add(order);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    order = pendingOrders.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                stopped = order == STOP;
+            } catch (InterruptedException e) {
+                for (PendingOrder order : batch) {
+                    order.handler.failed();
+                }
+                return;
+            }
+
+            if (batch.isEmpty()) {
+                continue;
+            }
+            boolean saved = write(batch.toArray(new PendingOrder[batch.size()]));
+            for (PendingOrder order : batch) {
+                // if the batch cannot be saved, save its orders one by one so that one bad order does not fail the others
+                if (saved || batch.size() > 1 && write(order)) {
+                    order.handler.ok();
+                } else {
+                    order.handler.failed();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Set the status of the given orders and save them at once.
+     *
+     * @return <code>false</code> if the orders could not be saved
+     */
+    private boolean write(PendingOrder... orders) {
+        Session session = null;
+        try {
+            session = repository.loginService(SUBSERVICE, null);
+            for (PendingOrder order : orders) {
+                if (!session.nodeExists(order.path)) {
+                    log.warn("Order {} does not exist", order.path);
+                    continue;
+                }
+                Node node = session.getNode(order.path);
+                node.setProperty(OrderStatusCache.PN_ORDER_STATUS, STATUS_PROCESSING);
+            }
+            session.save();
+            log.debug("Saved the status of {} orders", orders.length);
+            return true;
+        } catch (RepositoryException e) {
+            log.error("Failed to update " + orders.length + " orders", e);
+            return false;
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    private static final class PendingOrder {
+        final String path;
+        final AsyncHandler handler;
+
+        PendingOrder(String path, AsyncHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+    }
+}
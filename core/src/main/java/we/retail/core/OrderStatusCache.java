@@ -0,0 +1,227 @@
+package we.retail.core;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.util.WeRetailHelper;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <code>OrderStatusCache</code> maps the IDs of the orders kept in the vendor section
+ * (<code>/etc/commerce/orders</code>) to their path and status, so that order statuses can be looked up
+ * without logging in a service session and running a query for every order displayed.
+ *
+ * The cache is filled with a single query the first time it is used, and is then kept current by observing
+ * the changes below the orders root.  Orders which are not (yet) cached are looked up by the caller, which
+ * {@link #put(String, String, String) puts} them into the cache.
+ */
+@Component
+@Service({ OrderStatusCache.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = OrderStatusCache.ORDERS_ROOT),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" })
+})
+public class OrderStatusCache implements ResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderStatusCache.class);
+
+    static final String ORDERS_ROOT = "/etc/commerce/orders";
+
+    /**
+     * Sub-service used to read the orders in the vendor section.
+     */
+    static final String SUBSERVICE = "orders";
+
+    static final String PN_ORDER_ID = "orderId";
+    static final String PN_ORDER_STATUS = "orderStatus";
+
+    /**
+     * Time in milliseconds after which loading the cache is attempted again when it failed.
+     */
+    private static final long RETRY_DELAY = 60000;
+
+    @Reference
+    private SlingRepository repository;
+
+    private final Map<String, Entry> entriesById = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, String> idsByPath = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Set when the cache is first used; changes are only tracked from then on.
+     */
+    private volatile boolean active;
+    private volatile boolean loaded;
+
+    /**
+     * Time before which loading is not attempted again, after it failed.
+     */
+    private volatile long retryAt;
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        active = false;
+        loaded = false;
+        retryAt = 0;
+        entriesById.clear();
+        idsByPath.clear();
+    }
+
+    /**
+     * Return the path and status of the order <code>orderId</code>, or <code>null</code> if it is not cached.
+     */
+    public Entry get(String orderId) {
+        ensureLoaded();
+        return entriesById.get(orderId);
+    }
+
+    /**
+     * Cache the path and status of an order looked up by the caller.
+     */
+    public void put(String orderId, String path, String status) {
+        entriesById.put(orderId, new Entry(path, status));
+        idsByPath.put(path, orderId);
+    }
+
+    private void ensureLoaded() {
+        // while loading is backed off, the callers look the orders up one at a time without waiting for the lock
+        if (loaded || System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded || System.currentTimeMillis() < retryAt) {
+                return;
+            }
+            active = true;
+            Session session = null;
+            try {
+                session = repository.loginService(SUBSERVICE, null);
+                String statement = "/jcr:root" + ISO9075.encodePath(ORDERS_ROOT) + "//element(*)[@" + PN_ORDER_ID + "]";
+                Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.XPATH);
+                for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+                    cache(nodes.nextNode(), false);
+                }
+                loaded = true;
+                log.info("Cached the status of {} orders", entriesById.size());
+            } catch (RepositoryException e) {
+                // the orders are looked up one at a time until the next attempt
+                retryAt = System.currentTimeMillis() + RETRY_DELAY;
+                log.error("Cannot load the order statuses, retrying in " + RETRY_DELAY / 1000 + " seconds", e);
+            } finally {
+                if (session != null) {
+                    session.logout();
+                }
+            }
+        }
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        if (!active) {
+            return;
+        }
+        Session session = null;
+        try {
+            for (ResourceChange change : changes) {
+                String path = change.getPath();
+                if (change.getType() == ResourceChange.ChangeType.REMOVED) {
+                    remove(path);
+                    continue;
+                }
+                if (session == null) {
+                    session = repository.loginService(SUBSERVICE, null);
+                }
+                if (!session.nodeExists(path)) {
+                    remove(path);
+                    continue;
+                }
+                Node node = session.getNode(path);
+                if (node.hasProperty(PN_ORDER_ID)) {
+                    cache(node, true);
+                } else if (change.getType() == ResourceChange.ChangeType.ADDED) {
+                    // a whole subtree (such as a day folder) may have been added at once
+                    String statement = "/jcr:root" + ISO9075.encodePath(path) + "//element(*)[@" + PN_ORDER_ID + "]";
+                    Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.XPATH);
+                    for (NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+                        cache(nodes.nextNode(), true);
+                    }
+                }
+            }
+        } catch (RepositoryException e) {
+            // start over from the repository rather than serving outdated statuses
+            log.error("Cannot update the order statuses, clearing the cache", e);
+            clear();
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    private void clear() {
+        synchronized (this) {
+            loaded = false;
+            entriesById.clear();
+            idsByPath.clear();
+        }
+    }
+
+    private void cache(Node node, boolean replace) throws RepositoryException {
+        String orderId = node.getProperty(PN_ORDER_ID).getString();
+        String status = node.hasProperty(PN_ORDER_STATUS) ? node.getProperty(PN_ORDER_STATUS).getString() : null;
+        if (replace || !entriesById.containsKey(orderId)) {
+            put(orderId, node.getPath(), status);
+        }
+    }
+
+    private void remove(String path) {
+        for (Iterator<Map.Entry<String, String>> iterator = idsByPath.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (WeRetailHelper.isAncestorOrSelf(path, entry.getKey())) {
+                iterator.remove();
+                entriesById.remove(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The path and status of a cached order.
+     */
+    public static final class Entry {
+        private final String path;
+        private final String status;
+
+        Entry(String path, String status) {
+            this.path = path;
+            this.status = status;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Return the status of the order, or <code>null</code> if it has none.
+         */
+        public String getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package we.retail.core;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.util.WeRetailHelper;
+
+import java.math.BigDecimal;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>ProductSnapshotCache</code> keeps flattened, immutable snapshots of the we.Retail products keyed by
+ * product path, so that the product grids and product pages do not read the same product properties, pages
+ * and variants from the repository over and over again.
+ *
+ * A snapshot is taken with a service resource resolver the first time a product is used, as it is shared by
+ * all users; {@link WeRetailProductImpl} only uses it if the caller may read everything it was read from (see
+ * {@link Snapshot#isReadable(ResourceResolver)}).  It is discarded when the product, one of its variants, its
+ * product data or the content of the page holding it changes.  The brand is not part of the snapshot, it is
+ * looked up in the {@link BrandRegistry}.
+ */
+@Component
+@Service({ ProductSnapshotCache.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = { "/content/we-retail", ProductSnapshotCache.PRODUCT_DATA_ROOT }),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" })
+})
+public class ProductSnapshotCache implements ResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ProductSnapshotCache.class);
+
+    static final String PRODUCT_DATA_ROOT = "/etc/commerce/products/we-retail";
+
+    static final String SUBSERVICE = "products";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+    /**
+     * Incremented on each change, so that a snapshot taken while the product changed is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        snapshots.clear();
+    }
+
+    /**
+     * Return the snapshot of the product at <code>path</code>, taking it if needed, or <code>null</code> if
+     * the product cannot be read.
+     */
+    Snapshot get(String path) {
+        Snapshot snapshot = snapshots.get(path);
+        if (snapshot == null) {
+            long generation = this.generation.get();
+            snapshot = takeSnapshot(path);
+            if (snapshot != null && generation == this.generation.get()) {
+                snapshots.put(path, snapshot);
+            }
+        }
+        return snapshot;
+    }
+
+    private Snapshot takeSnapshot(String path) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = WeRetailHelper.getServiceResourceResolver(resolverFactory, SUBSERVICE);
+            Resource resource = resolver.getResource(path);
+            return resource != null ? new WeRetailProductImpl(resource).takeSnapshot() : null;
+        } catch (LoginException e) {
+            log.warn("Cannot take a snapshot of {}: {}", path, e.getMessage());
+            return null;
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        generation.incrementAndGet();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            // a change to a page's content affects all the products on the page
+            int content = path.indexOf(WeRetailHelper.JCR_CONTENT_SEGMENT + "/");
+            if (content < 0 && path.endsWith(WeRetailHelper.JCR_CONTENT_SEGMENT)) {
+                content = path.length() - WeRetailHelper.JCR_CONTENT_SEGMENT.length();
+            }
+            String scope = content > 0 ? path.substring(0, content) + WeRetailHelper.JCR_CONTENT_SEGMENT : path;
+
+            for (Iterator<Snapshot> iterator = snapshots.values().iterator(); iterator.hasNext();) {
+                Snapshot snapshot = iterator.next();
+                if (snapshot.dependsOn(scope, path)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * The flattened properties of a product.
+     */
+    static final class Snapshot {
+        private final String[] sources;
+        private final String sku;
+        private final String siteRootPath;
+        private final BigDecimal price;
+        private final String title;
+        private final String imagePath;
+        private final String imageReference;
+        private final List<String> variantAxes;
+        private final List<String> variantPaths;
+
+        /**
+         * @param sources the paths the snapshot is read from: the product itself and its product data
+         */
+        Snapshot(String[] sources, String sku, String siteRootPath, BigDecimal price, String title, String imagePath,
+                 String imageReference, List<String> variantAxes, List<String> variantPaths) {
+            this.sources = sources;
+            this.sku = sku;
+            this.siteRootPath = siteRootPath;
+            this.price = price;
+            this.title = title;
+            this.imagePath = imagePath;
+            this.imageReference = imageReference;
+            this.variantAxes = variantAxes;
+            this.variantPaths = variantPaths;
+        }
+
+        /**
+         * Tell if the snapshot is outdated by a change at <code>path</code>, within the page content (or subtree)
+         * <code>scope</code>.
+         */
+        boolean dependsOn(String scope, String path) {
+            for (String source : sources) {
+                if (source != null && (WeRetailHelper.isAncestorOrSelf(scope, source)
+                        || WeRetailHelper.isAncestorOrSelf(source, path))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tell if <code>resolver</code> may read the product, product data and image the snapshot was read from.
+         */
+        boolean isReadable(ResourceResolver resolver) {
+            for (String source : sources) {
+                if (source != null && resolver.getResource(source) == null) {
+                    return false;
+                }
+            }
+            return imagePath == null || resolver.getResource(imagePath) != null;
+        }
+
+        String getSKU() {
+            return sku;
+        }
+
+        /**
+         * Return the path of the site root the brand of the product is taken from.
+         */
+        String getSiteRootPath() {
+            return siteRootPath;
+        }
+
+        BigDecimal getPrice() {
+            return price;
+        }
+
+        String getTitle() {
+            return title;
+        }
+
+        String getImagePath() {
+            return imagePath;
+        }
+
+        String getImageReference() {
+            return imageReference;
+        }
+
+        List<String> getVariantAxes() {
+            return variantAxes;
+        }
+
+        List<String> getVariantPaths() {
+            return variantPaths;
+        }
+    }
+}
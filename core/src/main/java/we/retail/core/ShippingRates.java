@@ -0,0 +1,210 @@
+package we.retail.core;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <code>ShippingRates</code> holds the shipping costs of the we.Retail shipping methods, by delivery zone and
+ * by cart weight.
+ *
+ * The configured rates are compiled into an immutable table which is replaced as a whole when the
+ * configuration changes, so that {@link #getRate(String, String, double)} neither locks, nor parses, nor
+ * allocates anything.  A cart heavier than the heaviest tier of a method is charged the rate of that tier,
+ * and a method without configured rates is charged its default rate, so that a misconfiguration never makes
+ * shipping free.  Such gaps in the rates are reported once, when the configuration is compiled.
+ */
+@Component(metatype = true,
+        label = "we.Retail Shipping Rates",
+        description = "Shipping costs of the we.Retail shipping methods")
+@Service(ShippingRates.class)
+public class ShippingRates {
+
+    private static final Logger log = LoggerFactory.getLogger(ShippingRates.class);
+
+    /**
+     * The zone whose rates apply to the destinations without rates of their own.
+     */
+    public static final String DEFAULT_ZONE = "*";
+
+    private static final String[] DEFAULT_RATES = {
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/ground|*|*|10.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/three-day|*|*|20.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/two-day|*|*|25.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/overnight|*|*|40.00"
+    };
+
+    private static final RateTable DEFAULT_TABLE = compile(DEFAULT_RATES);
+
+    @Property(value = {
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/ground|*|*|10.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/three-day|*|*|20.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/two-day|*|*|25.00",
+            "/etc/commerce/shipping-methods/geometrixx-outdoors/overnight|*|*|40.00"
+    }, label = "Rates", description = "Shipping rates, as method|zone|maximum weight|cost, where the zone and the "
+            + "maximum weight (in kilograms) may be * to match any zone or weight")
+    public static final String RATES = "shipping.rates";
+
+    private volatile RateTable table = DEFAULT_TABLE;
+
+    @SuppressWarnings ("unused")
+    @Activate
+    @Modified
+    private void activate(ComponentContext context) {
+        RateTable table = compile(PropertiesUtil.toStringArray(context.getProperties().get(RATES), DEFAULT_RATES));
+        for (String method : DEFAULT_TABLE.rates.keySet()) {
+            if (!table.rates.containsKey(method)) {
+                log.warn("No shipping rate is configured for {}, applying its default rate", method);
+            }
+        }
+        this.table = table;
+    }
+
+    /**
+     * Return the cost of shipping a cart of the given weight (in kilograms) to <code>zone</code> with the
+     * given method, or <code>null</code> if the method has neither a configured nor a default rate.  The rates
+     * of the {@link #DEFAULT_ZONE} apply if the zone has no rates of its own.
+     */
+    public BigDecimal getRate(String method, String zone, double weight) {
+        RateTable table = this.table;
+        BigDecimal rate = getRate(table, method, zone, weight);
+        return rate == null && table != DEFAULT_TABLE ? getDefaultRate(method, zone, weight) : rate;
+    }
+
+    /**
+     * Return the default cost of shipping with the given method, as {@link #getRate(String, String, double)}
+     * does when the rates are not configured, or <code>null</code> if the method has no default rate.
+     */
+    public static BigDecimal getDefaultRate(String method, String zone, double weight) {
+        return getRate(DEFAULT_TABLE, method, zone, weight);
+    }
+
+    static BigDecimal getRate(RateTable table, String method, String zone, double weight) {
+        Map<String, Tiers> zones = table.rates.get(method);
+        if (zones == null) {
+            return null;
+        }
+        Tiers tiers = zone != null ? zones.get(zone) : null;
+        if (tiers == null) {
+            tiers = zones.get(DEFAULT_ZONE);
+        }
+        return tiers != null ? tiers.getRate(weight) : null;
+    }
+
+    /**
+     * Tell if any rate depends on the weight of the cart, i.e. if the weight needs to be computed at all.
+     */
+    public boolean isWeightBased() {
+        return table.weightBased;
+    }
+
+    static RateTable compile(String[] entries) {
+        Map<String, Map<String, TreeMap<Double, BigDecimal>>> rates = new HashMap<String, Map<String, TreeMap<Double, BigDecimal>>>();
+        boolean weightBased = false;
+        for (String entry : entries) {
+            String[] parts = entry.split("\\|");
+            if (parts.length != 4) {
+                log.warn("Ignoring invalid shipping rate {}", entry);
+                continue;
+            }
+            try {
+                String method = parts[0].trim();
+                String zone = parts[1].trim();
+                double maxWeight = parts[2].trim().equals("*") ? Double.POSITIVE_INFINITY : Double.parseDouble(parts[2].trim());
+                BigDecimal cost = new BigDecimal(parts[3].trim());
+                weightBased |= maxWeight != Double.POSITIVE_INFINITY;
+
+                Map<String, TreeMap<Double, BigDecimal>> zones = rates.get(method);
+                if (zones == null) {
+                    zones = new HashMap<String, TreeMap<Double, BigDecimal>>();
+                    rates.put(method, zones);
+                }
+                TreeMap<Double, BigDecimal> tiers = zones.get(zone);
+                if (tiers == null) {
+                    tiers = new TreeMap<Double, BigDecimal>();
+                    zones.put(zone, tiers);
+                }
+                tiers.put(maxWeight, cost);
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring invalid shipping rate {}", entry);
+            }
+        }
+
+        Map<String, Map<String, Tiers>> compiled = new HashMap<String, Map<String, Tiers>>();
+        for (Map.Entry<String, Map<String, TreeMap<Double, BigDecimal>>> method : rates.entrySet()) {
+            Map<String, Tiers> zones = new HashMap<String, Tiers>();
+            for (Map.Entry<String, TreeMap<Double, BigDecimal>> zone : method.getValue().entrySet()) {
+                Tiers tiers = new Tiers(zone.getValue());
+                if (tiers.getMaxWeight() != Double.POSITIVE_INFINITY) {
+                    log.warn("The rates of {} in zone {} end at {} kg, heavier carts are charged the rate of the "
+                            + "heaviest tier; the last tier of each method should have a * weight",
+                            new Object[] { method.getKey(), zone.getKey(), tiers.getMaxWeight() });
+                }
+                zones.put(zone.getKey(), tiers);
+            }
+            if (!zones.containsKey(DEFAULT_ZONE)) {
+                log.warn("The rates of {} have no * zone, the other zones are charged its default rate", method.getKey());
+            }
+            compiled.put(method.getKey(), zones);
+        }
+        return new RateTable(compiled, weightBased);
+    }
+
+    /**
+     * An immutable snapshot of the configured rates.
+     */
+    static final class RateTable {
+        final Map<String, Map<String, Tiers>> rates;
+        final boolean weightBased;
+
+        RateTable(Map<String, Map<String, Tiers>> rates, boolean weightBased) {
+            this.rates = rates;
+            this.weightBased = weightBased;
+        }
+    }
+
+    /**
+     * The rates of a method and zone, by increasing maximum weight.
+     */
+    static final class Tiers {
+        private final double[] maxWeights;
+        private final BigDecimal[] costs;
+
+        Tiers(TreeMap<Double, BigDecimal> tiers) {
+            maxWeights = new double[tiers.size()];
+            costs = new BigDecimal[tiers.size()];
+            int i = 0;
+            for (Map.Entry<Double, BigDecimal> tier : tiers.entrySet()) {
+                maxWeights[i] = tier.getKey();
+                costs[i++] = tier.getValue();
+            }
+        }
+
+        double getMaxWeight() {
+            return maxWeights[maxWeights.length - 1];
+        }
+
+        /**
+         * Return the cost of the lightest tier the weight fits in, or of the heaviest tier if it fits in none.
+         */
+        BigDecimal getRate(double weight) {
+            for (int i = 0; i < maxWeights.length - 1; i++) {
+                if (weight <= maxWeights[i]) {
+                    return costs[i];
+                }
+            }
+            return costs[costs.length - 1];
+        }
+    }
+}
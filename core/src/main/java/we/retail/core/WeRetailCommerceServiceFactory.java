@@ -3,11 +3,22 @@ package we.retail.core;
 import com.adobe.cq.commerce.api.CommerceService;
 import com.adobe.cq.commerce.api.CommerceServiceFactory;
 import com.adobe.cq.commerce.common.AbstractJcrCommerceServiceFactory;
+import com.day.cq.commons.jcr.JcrConstants;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.event.jobs.JobManager;
+import we.retail.core.productrelationships.ProductTagIndex;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * we.retail implementation for the {@link CommerceServiceFactory} interface.
@@ -19,10 +30,105 @@ import org.apache.sling.api.resource.Resource;
     @Property(name = "commerceProvider", value = "we-retail", propertyPrivate = true)
 })
 public class WeRetailCommerceServiceFactory  extends AbstractJcrCommerceServiceFactory implements CommerceServiceFactory {
+
+    private static final String PN_COMMERCE_PROVIDER = "cq:commerceProvider";
+
+    @Reference
+    private ProductTagIndex productTagIndex;
+
+    @Reference
+    private OrderStatusCache orderStatusCache;
+
+    @Reference
+    private JobManager jobManager;
+
+    @Reference
+    private ShippingRates shippingRates;
+
+    @Reference
+    private CheckoutMethodCatalog checkoutMethodCatalog;
+
+    @Reference
+    private ProductSnapshotCache productSnapshotCache;
+
+    @Reference
+    private BrandRegistry brandRegistry;
+
+    /**
+     * The commerce services created for each resource resolver, keyed by the path of their commerce provider
+     * root.  Neither the resolvers nor the services are kept from being garbage collected: a service refers to
+     * its resolver, so it is only weakly referenced.
+     */
+    private final Map<ResourceResolver, Map<String, WeakReference<CommerceService>>> services =
+            new WeakHashMap<ResourceResolver, Map<String, WeakReference<CommerceService>>>();
+
     /**
-     * Create a new <code>GeoCommerceServiceImpl</code>.
+     * Return the <code>WeRetailCommerceServiceImpl</code> of the commerce provider root of <code>res</code>.
+     *
+     * A service reads with the resource resolver of the resource it is created for, so services are only
+     * shared within a resource resolver (i.e. within a request), by all the resources below the same commerce
+     * provider root.
      */
     public CommerceService getCommerceService(Resource res) {
-        return new WeRetailCommerceServiceImpl(getServiceContext(), res);
+        String rootPath = getProviderRoot(res).getPath();
+        synchronized (services) {
+            Map<String, WeakReference<CommerceService>> resolverServices = services.get(res.getResourceResolver());
+            if (resolverServices == null) {
+                resolverServices = new HashMap<String, WeakReference<CommerceService>>();
+                services.put(res.getResourceResolver(), resolverServices);
+            }
+            WeakReference<CommerceService> reference = resolverServices.get(rootPath);
+            CommerceService service = reference != null ? reference.get() : null;
+            if (service == null) {
+                service = new WeRetailCommerceServiceImpl(getServiceContext(), res, this, rootPath);
+                resolverServices.put(rootPath, new WeakReference<CommerceService>(service));
+            }
+            return service;
+        }
+    }
+
+    /**
+     * Return the closest ancestor of <code>res</code> (or <code>res</code> itself) which defines the commerce
+     * provider, either on itself or on its content, or <code>res</code> if none does.
+     */
+    private static Resource getProviderRoot(Resource res) {
+        for (Resource current = res; current != null; current = current.getParent()) {
+            if (ResourceUtil.getValueMap(current).containsKey(PN_COMMERCE_PROVIDER)) {
+                return current;
+            }
+            Resource content = current.getChild(JcrConstants.JCR_CONTENT);
+            if (content != null && ResourceUtil.getValueMap(content).containsKey(PN_COMMERCE_PROVIDER)) {
+                return current;
+            }
+        }
+        return res;
+    }
+
+    ProductTagIndex getProductTagIndex() {
+        return productTagIndex;
+    }
+
+    OrderStatusCache getOrderStatusCache() {
+        return orderStatusCache;
+    }
+
+    JobManager getJobManager() {
+        return jobManager;
+    }
+
+    ShippingRates getShippingRates() {
+        return shippingRates;
+    }
+
+    CheckoutMethodCatalog getCheckoutMethodCatalog() {
+        return checkoutMethodCatalog;
+    }
+
+    ProductSnapshotCache getProductSnapshotCache() {
+        return productSnapshotCache;
+    }
+
+    BrandRegistry getBrandRegistry() {
+        return brandRegistry;
     }
 }
@@ -15,6 +15,7 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.event.jobs.JobManager;
 
 import javax.jcr.Node;
 import java.util.ArrayList;
@@ -26,16 +27,72 @@ import java.util.List;
  */
 public class WeRetailCommerceServiceImpl extends AbstractJcrCommerceService implements CommerceService  {
 
+    /**
+     * Prefix of the request attributes holding the commerce sessions of the request, one per commerce
+     * provider root.
+     */
+    private static final String ATTR_COMMERCE_SESSION = WeRetailCommerceSessionImpl.class.getName() + ":";
+
     private Resource resource;
+    private WeRetailCommerceServiceFactory factory;
+    private String sessionAttribute;
 
     public WeRetailCommerceServiceImpl(ServiceContext serviceContext, Resource resource) {
+        this(serviceContext, resource, null);
+    }
+
+    public WeRetailCommerceServiceImpl(ServiceContext serviceContext, Resource resource, WeRetailCommerceServiceFactory factory) {
+        this(serviceContext, resource, factory, resource.getPath());
+    }
+
+    /**
+     * @param rootPath the path of the commerce provider root the service is shared for
+     */
+    WeRetailCommerceServiceImpl(ServiceContext serviceContext, Resource resource, WeRetailCommerceServiceFactory factory,
+                                String rootPath) {
         super(serviceContext, resource);
         this.resource = resource;
+        this.factory = factory;
+        this.sessionAttribute = ATTR_COMMERCE_SESSION + rootPath;
     }
 
+    /**
+     * Return the commerce session of the request for the commerce provider root of this service, creating it
+     * (and reading the cart) on first use, so that all the components of a page share a single session.
+     */
     @Override
     public CommerceSession login(SlingHttpServletRequest request, SlingHttpServletResponse response) throws CommerceException {
-        return new WeRetailCommerceSessionImpl(this, request, response, resource);
+        Object session = request.getAttribute(sessionAttribute);
+        if (session instanceof WeRetailCommerceSessionImpl) {
+            return (CommerceSession) session;
+        }
+        WeRetailCommerceSessionImpl commerceSession = new WeRetailCommerceSessionImpl(this, request, response, resource);
+        request.setAttribute(sessionAttribute, commerceSession);
+        return commerceSession;
+    }
+
+    /**
+     * Return the cache of the order statuses, or <code>null</code> if this service was not created by the
+     * {@link WeRetailCommerceServiceFactory}.
+     */
+    OrderStatusCache getOrderStatusCache() {
+        return factory != null ? factory.getOrderStatusCache() : null;
+    }
+
+    /**
+     * Return the job manager orders are queued for processing with, or <code>null</code> if this service was
+     * not created by the {@link WeRetailCommerceServiceFactory}.
+     */
+    JobManager getJobManager() {
+        return factory != null ? factory.getJobManager() : null;
+    }
+
+    /**
+     * Return the shipping rates, or <code>null</code> if this service was not created by the
+     * {@link WeRetailCommerceServiceFactory}.
+     */
+    ShippingRates getShippingRates() {
+        return factory != null ? factory.getShippingRates() : null;
     }
 
     @Override
@@ -51,7 +108,9 @@ public class WeRetailCommerceServiceImpl extends AbstractJcrCommerceService impl
     public Product getProduct(final String path) throws CommerceException {
         Resource resource = resolver.getResource(path);
         if (resource != null && WeRetailProductImpl.isAProductOrVariant(resource)) {
-            return new WeRetailProductImpl(resource);
+            return factory != null
+                    ? new WeRetailProductImpl(resource, factory.getProductSnapshotCache(), factory.getBrandRegistry())
+                    : new WeRetailProductImpl(resource);
         }
         return null;
     }
@@ -138,6 +197,14 @@ public class WeRetailCommerceServiceImpl extends AbstractJcrCommerceService impl
             if (changed) {
                 productPage.getPageManager().touch(productPage.adaptTo(Node.class), true, Calendar.getInstance(), false);
             }
+
+            //
+            // Rebuild the product tag index once the catalog rollout is over (the rebuild is postponed
+            // for as long as further products are being rolled out).
+            //
+            if (factory != null && factory.getProductTagIndex() != null) {
+                factory.getProductTagIndex().scheduleRebuild();
+            }
         } catch(Exception e) {
             throw new CommerceException("Product rollout hook failed: ", e);
         }
@@ -145,12 +212,26 @@ public class WeRetailCommerceServiceImpl extends AbstractJcrCommerceService impl
 
     @Override
     public List<ShippingMethod> getAvailableShippingMethods() throws CommerceException {
-        return enumerateMethods("/etc/commerce/shipping-methods/geometrixx-outdoors", ShippingMethod.class);
+        if (factory != null && factory.getCheckoutMethodCatalog() != null) {
+            return factory.getCheckoutMethodCatalog().getSnapshot(factory).getShippingMethods();
+        }
+        return enumerateMethods(CheckoutMethodCatalog.SHIPPING_METHODS_ROOT, ShippingMethod.class);
     }
 
     @Override
     public List<PaymentMethod> getAvailablePaymentMethods() throws CommerceException {
-        return enumerateMethods("/etc/commerce/payment-methods/geometrixx-outdoors", PaymentMethod.class);
+        if (factory != null && factory.getCheckoutMethodCatalog() != null) {
+            return factory.getCheckoutMethodCatalog().getSnapshot(factory).getPaymentMethods();
+        }
+        return enumerateMethods(CheckoutMethodCatalog.PAYMENT_METHODS_ROOT, PaymentMethod.class);
+    }
+
+    /**
+     * Read the methods of the given type below <code>root</code> from the repository, for the
+     * {@link CheckoutMethodCatalog}.
+     */
+    <T> List<T> enumerate(String root, Class<T> type) throws CommerceException {
+        return enumerateMethods(root, type);
     }
 
     @Override
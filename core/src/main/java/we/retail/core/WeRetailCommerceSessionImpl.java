@@ -2,21 +2,36 @@ package we.retail.core;
 
 import com.adobe.cq.commerce.api.CommerceConstants;
 import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.CommerceSort;
 import com.adobe.cq.commerce.api.PlacedOrder;
+import com.adobe.cq.commerce.api.PlacedOrderResult;
 import com.adobe.cq.commerce.common.AbstractJcrCommerceService;
 import com.adobe.cq.commerce.common.AbstractJcrCommerceSession;
+import com.adobe.cq.commerce.common.DefaultCommerceSort;
+import com.adobe.cq.commerce.common.DefaultPaginationInfo;
 import com.day.cq.i18n.I18n;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
 import org.apache.jackrabbit.util.Text;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.event.jobs.JobManager;
 import org.apache.commons.collections.Predicate;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -24,6 +39,32 @@ import java.util.Map;
  */
 public class WeRetailCommerceSessionImpl extends AbstractJcrCommerceSession {
 
+    /**
+     * Product property holding the weight of a product, in kilograms.
+     */
+    private static final String PN_WEIGHT = "weight";
+
+    /**
+     * Location of the orders placed by a user, relative to the user's home.
+     */
+    private static final String USER_ORDERS_PATH = "commerce/orders";
+
+    /**
+     * Maximum number of orders whose status is looked up with a single query.
+     */
+    private static final int ORDER_STATUS_BATCH_SIZE = 100;
+
+    /**
+     * Sorts of the open orders.
+     */
+    public static final String SORT_NEWEST_FIRST = "newest";
+    public static final String SORT_OLDEST_FIRST = "oldest";
+
+    /**
+     * The statuses of the placed orders listed through this session, keyed by order ID.
+     */
+    private final Map<String, String> orderStatuses = new HashMap<String, String>();
+
     public WeRetailCommerceSessionImpl(AbstractJcrCommerceService commerceService,
                                   SlingHttpServletRequest request,
                                   SlingHttpServletResponse response,
@@ -35,21 +76,39 @@ public class WeRetailCommerceSessionImpl extends AbstractJcrCommerceSession {
     @Override
     protected BigDecimal getShipping(String method) {
         //
-        // A simple shipping pricing architecture with fixed shipping costs.
+        // Shipping costs are configured per method, zone and weight in the ShippingRates service.  The checkout
+        // does not collect a delivery zone, so the rates of the default zone apply; the weight of the cart is
+        // only computed if some rate depends on it.  Sessions created without the service factory charge the
+        // default rates.
         //
-        String[][] shippingCosts = {
-                {"/etc/commerce/shipping-methods/geometrixx-outdoors/ground",    "10.00"},
-                {"/etc/commerce/shipping-methods/geometrixx-outdoors/three-day", "20.00"},
-                {"/etc/commerce/shipping-methods/geometrixx-outdoors/two-day",   "25.00"},
-                {"/etc/commerce/shipping-methods/geometrixx-outdoors/overnight", "40.00"}
-        };
-
-        for (String[] entry : shippingCosts) {
-            if (entry[0].equals(method)) {
-                return new BigDecimal(entry[1]);
+        ShippingRates shippingRates = commerceService instanceof WeRetailCommerceServiceImpl
+                ? ((WeRetailCommerceServiceImpl) commerceService).getShippingRates() : null;
+        BigDecimal rate;
+        if (shippingRates != null) {
+            double weight = shippingRates.isWeightBased() ? getCartWeight() : 0;
+            rate = shippingRates.getRate(method, ShippingRates.DEFAULT_ZONE, weight);
+        } else {
+            rate = ShippingRates.getDefaultRate(method, ShippingRates.DEFAULT_ZONE, 0);
+        }
+        return rate != null ? rate : BigDecimal.ZERO;
+    }
+
+    /**
+     * Return the weight of the cart in kilograms, from the <code>weight</code> property of its products.
+     */
+    private double getCartWeight() {
+        double weight = 0;
+        try {
+            for (CartEntry entry : getCartEntries()) {
+                Double productWeight = entry.getProduct().getProperty(PN_WEIGHT, Double.class);
+                if (productWeight != null) {
+                    weight += productWeight * entry.getQuantity();
+                }
             }
+        } catch (CommerceException e) {
+            log.error("Cannot compute the weight of the cart", e);
         }
-        return BigDecimal.ZERO;
+        return weight;
     }
 
     @Override
@@ -65,8 +124,19 @@ public class WeRetailCommerceSessionImpl extends AbstractJcrCommerceSession {
     protected void initiateOrderProcessing(String orderPath) throws CommerceException {
         //
         // This is only a stub implementation for the Geometrixx-Outdoors demo site, for which there is no
-        // real order processing.
+        // real order processing.  The order is queued for the OrderProcessingJobConsumer, so that the checkout
+        // does not wait for its status to be saved.
         //
+        JobManager jobManager = commerceService instanceof WeRetailCommerceServiceImpl
+                ? ((WeRetailCommerceServiceImpl) commerceService).getJobManager() : null;
+        if (jobManager != null) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(OrderProcessingJobConsumer.PROPERTY_ORDER_PATH, orderPath);
+            if (jobManager.addJob(OrderProcessingJobConsumer.TOPIC, properties) != null) {
+                return;
+            }
+            log.warn("Cannot queue order {}, processing it synchronously", orderPath);
+        }
         try {
             Node order = resolver.getResource(orderPath).adaptTo(Node.class);
             order.setProperty("orderStatus", "Processing");
@@ -76,37 +146,224 @@ public class WeRetailCommerceSessionImpl extends AbstractJcrCommerceSession {
         }
     }
 
+    @Override
+    public PlacedOrderResult getPlacedOrders(String predicate, int pageNumber, int pageSize, String sortId) throws CommerceException {
+        if (CommerceConstants.OPEN_ORDERS_PREDICATE.equals(predicate)) {
+            PlacedOrderResult result = getOpenOrders(pageNumber, pageSize, sortId);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        PlacedOrderResult result = super.getPlacedOrders(predicate, pageNumber, pageSize, sortId);
+        //
+        // Look up the statuses of all the orders of the page at once, rather than one by one as they are rendered.
+        //
+        List<String> orderIds = new ArrayList<String>();
+        for (PlacedOrder order : result.getOrders()) {
+            if (!orderStatuses.containsKey(order.getOrderId())) {
+                orderIds.add(order.getOrderId());
+            }
+        }
+        orderStatuses.putAll(getOrderStatuses(orderIds));
+        return result;
+    }
+
+    /**
+     * Return the requested page of the open orders of the current user, sorted by order date as requested by
+     * <code>sortId</code> ({@link #SORT_NEWEST_FIRST} unless {@link #SORT_OLDEST_FIRST} is given).
+     *
+     * Order statuses are kept in the vendor section, so they cannot be part of the query over the user's
+     * orders: that query only reads the order IDs, sorted by order date by the repository.  The statuses of
+     * these IDs are then looked up in one batch, and only the orders of the requested page are loaded.
+     *
+     * @return the open orders, or <code>null</code> if the orders of the current user cannot be queried
+     */
+    private PlacedOrderResult getOpenOrders(int pageNumber, int pageSize, String sortId) throws CommerceException {
+        boolean oldestFirst = SORT_OLDEST_FIRST.equals(sortId);
+        List<String> orderIds = getPlacedOrderIds(oldestFirst);
+        if (orderIds == null) {
+            return null;
+        }
+        Map<String, String> statuses = getOrderStatuses(orderIds);
+        orderStatuses.putAll(statuses);
+
+        List<String> openOrderIds = new ArrayList<String>();
+        for (String orderId : orderIds) {
+            if (isOpen(statuses.get(orderId))) {
+                openOrderIds.add(orderId);
+            }
+        }
+
+        int offset = pageSize > 0 ? Math.max(0, pageNumber) * pageSize : 0;
+        int limit = pageSize > 0 ? pageSize : openOrderIds.size();
+        List<PlacedOrder> orders = new ArrayList<PlacedOrder>();
+        for (int i = offset; i < openOrderIds.size() && i < offset + limit; i++) {
+            orders.add(getPlacedOrder(openOrderIds.get(i)));
+        }
+
+        DefaultPaginationInfo paginationInfo = new DefaultPaginationInfo();
+        paginationInfo.setPageSize(limit);
+        paginationInfo.setCurrentPage(pageSize > 0 ? Math.max(0, pageNumber) : 0);
+        paginationInfo.setTotalPages(limit > 0 ? (openOrderIds.size() + limit - 1) / limit : 0);
+        paginationInfo.setTotalResults(openOrderIds.size());
+        return new PlacedOrderResult(orders, getOrderSorts(oldestFirst), paginationInfo);
+    }
+
+    private List<CommerceSort> getOrderSorts(boolean oldestFirst) {
+        final I18n i18n = new I18n(request);
+        List<CommerceSort> sorts = new ArrayList<CommerceSort>();
+        sorts.add(createSort(SORT_NEWEST_FIRST, i18n.get("Newest first", "order sort"), !oldestFirst));
+        sorts.add(createSort(SORT_OLDEST_FIRST, i18n.get("Oldest first", "order sort"), oldestFirst));
+        return sorts;
+    }
+
+    private static CommerceSort createSort(String id, String displayName, boolean selected) {
+        DefaultCommerceSort sort = new DefaultCommerceSort();
+        sort.setId(id);
+        sort.setDisplayName(displayName);
+        sort.setSelected(selected);
+        return sort;
+    }
+
+    /**
+     * Return the IDs of the orders placed by the current user, sorted by order date, or <code>null</code> if
+     * the current user has no orders folder.
+     *
+     * The orders are looked up in the synchronous order ID index, so that the orders just placed are listed,
+     * and sorted in memory: the asynchronous indexes which could sort them may not have caught up yet.
+     */
+    private List<String> getPlacedOrderIds(final boolean oldestFirst) {
+        try {
+            UserManager userManager = resolver.adaptTo(UserManager.class);
+            Authorizable user = userManager != null ? userManager.getAuthorizable(resolver.getUserID()) : null;
+            if (user == null || user.isGroup()) {
+                return null;
+            }
+            //
+            // example query: /jcr:root/home/users/a/admin/commerce/orders//element(*)[@orderId]
+            //
+            String statement = "/jcr:root" + ISO9075.encodePath(user.getPath() + "/" + USER_ORDERS_PATH)
+                    + "//element(*)[@orderId]";
+            Session session = resolver.adaptTo(Session.class);
+            final Query query = session.getWorkspace().getQueryManager().createQuery(statement, Query.XPATH);
+            final Map<String, Long> placedById = new HashMap<String, Long>();
+            NodeIterator nodeIterator = query.execute().getNodes();
+            while (nodeIterator.hasNext()) {
+                Node order = nodeIterator.nextNode();
+                long placed = order.hasProperty("orderPlaced") ? order.getProperty("orderPlaced").getDate().getTimeInMillis() : 0;
+                placedById.put(order.getProperty("orderId").getString(), placed);
+            }
+            List<String> orderIds = new ArrayList<String>(placedById.keySet());
+            Collections.sort(orderIds, new Comparator<String>() {
+                public int compare(String id1, String id2) {
+                    int result = placedById.get(id1).compareTo(placedById.get(id2));
+                    return oldestFirst ? result : -result;
+                }
+            });
+            return orderIds;
+        } catch (RepositoryException e) {
+            log.error("Error while querying the orders of " + resolver.getUserID(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Tell if an order with the given status is open.  Orders whose status is unknown are considered open.
+     */
+    private static boolean isOpen(String status) {
+        return status == null || (!status.equals("Completed") && !status.equals("Cancelled"));
+    }
+
     @Override
     protected String getOrderStatus(String orderId) throws CommerceException {
+        String status = orderStatuses.get(orderId);
+        if (status == null) {
+            status = getOrderStatuses(Collections.singleton(orderId)).get(orderId);
+        }
+        if (status != null) {
+            return status;
+        }
+        final I18n i18n = new I18n(request);
+        return i18n.get("unknown", "order status");
+    }
+
+    /**
+     * Return the statuses of the given orders, keyed by order ID.  Orders which cannot be found, or which have
+     * no status, are left out.
+     *
+     * Statuses are looked up in the {@link OrderStatusCache}; the orders which are not cached are looked up
+     * with a single query (per {@link #ORDER_STATUS_BATCH_SIZE} orders) over a single service session.
+     */
+    public Map<String, String> getOrderStatuses(Collection<String> orderIds) {
+        Map<String, String> statuses = new HashMap<String, String>();
+
         //
-        // Status is kept in the vendor section (/etc/commerce); need to find corresponding order there.
+        // Status is kept in the vendor section (/etc/commerce); look it up in the cache first, and only query
+        // for the corresponding orders there if they are not cached.
         //
+        OrderStatusCache statusCache = getOrderStatusCache();
+        List<String> uncachedIds = new ArrayList<String>();
+        for (String orderId : orderIds) {
+            OrderStatusCache.Entry entry = statusCache != null ? statusCache.get(orderId) : null;
+            if (entry != null && entry.getStatus() != null) {
+                statuses.put(orderId, entry.getStatus());
+            } else {
+                uncachedIds.add(orderId);
+            }
+        }
+        if (uncachedIds.isEmpty()) {
+            return statuses;
+        }
+
         Session serviceSession = null;
         try {
             serviceSession = commerceService.serviceContext().slingRepository.loginService("orders", null);
-            //
-            // example query: /jcr:root/etc/commerce/orders//element(*)[@orderId='foo')]
-            //
-            StringBuilder buffer = new StringBuilder();
-            buffer.append("/jcr:root/etc/commerce/orders//element(*)[@orderId = '")
-                    .append(Text.escapeIllegalXpathSearchChars(orderId).replaceAll("'", "''"))
-                    .append("']");
+            for (int from = 0; from < uncachedIds.size(); from += ORDER_STATUS_BATCH_SIZE) {
+                List<String> batch = uncachedIds.subList(from, Math.min(from + ORDER_STATUS_BATCH_SIZE, uncachedIds.size()));
+                //
+                // example query: /jcr:root/etc/commerce/orders//element(*)[@orderId = 'foo' or @orderId = 'bar']
+                //
+                StringBuilder buffer = new StringBuilder();
+                buffer.append("/jcr:root/etc/commerce/orders//element(*)[");
+                for (int i = 0; i < batch.size(); i++) {
+                    buffer.append(i > 0 ? " or " : "").append("@orderId = '")
+                            .append(Text.escapeIllegalXpathSearchChars(batch.get(i)).replaceAll("'", "''"))
+                            .append("'");
+                }
+                buffer.append("]");
 
-            final Query query = serviceSession.getWorkspace().getQueryManager().createQuery(buffer.toString(), Query.XPATH);
-            NodeIterator nodeIterator = query.execute().getNodes();
-            if (nodeIterator.hasNext()) {
-                return nodeIterator.nextNode().getProperty("orderStatus").getString();
+                final Query query = serviceSession.getWorkspace().getQueryManager().createQuery(buffer.toString(), Query.XPATH);
+                NodeIterator nodeIterator = query.execute().getNodes();
+                while (nodeIterator.hasNext()) {
+                    Node order = nodeIterator.nextNode();
+                    if (!order.hasProperty("orderStatus")) {
+                        continue;
+                    }
+                    String orderId = order.getProperty("orderId").getString();
+                    String status = order.getProperty("orderStatus").getString();
+                    if (statusCache != null) {
+                        statusCache.put(orderId, order.getPath(), status);
+                    }
+                    statuses.put(orderId, status);
+                }
             }
         } catch (Exception e) {
             // fail-safe when the query above contains errors
-            log.error("Error while fetching order status for orderId '" + orderId + "'", e);
+            log.error("Error while fetching order status for orderIds " + uncachedIds, e);
         } finally {
             if (serviceSession != null) {
                 serviceSession.logout();
             }
         }
-        final I18n i18n = new I18n(request);
-        return i18n.get("unknown", "order status");
+        return statuses;
+    }
+
+    private OrderStatusCache getOrderStatusCache() {
+        if (commerceService instanceof WeRetailCommerceServiceImpl) {
+            return ((WeRetailCommerceServiceImpl) commerceService).getOrderStatusCache();
+        }
+        return null;
     }
 
     @Override
@@ -1,40 +1,120 @@
 package we.retail.core;
 
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.VariantFilter;
 import com.adobe.cq.commerce.common.AbstractJcrProduct;
+import com.day.cq.commons.ImageResource;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
+import com.day.text.Text;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import we.retail.core.util.WeRetailHelper;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Created by Daniel on 09/03/16.
+ *
+ * The SKU, price, title, image and variants of a product are read once into a
+ * {@link ProductSnapshotCache.Snapshot}, shared by all the instances of the product when a
+ * {@link ProductSnapshotCache} is given and the caller may read what it was read from.  The brand is looked
+ * up in the {@link BrandRegistry}.
  */
 public class WeRetailProductImpl extends AbstractJcrProduct {
+    private static final Logger log = LoggerFactory.getLogger(WeRetailProductImpl.class);
+
     public static final String PN_IDENTIFIER = "identifier";
     public static final String PN_PRICE = "price";
 
+    private static final String PN_PRODUCT_DATA = "productData";
+    private static final String PN_FILE_REFERENCE = "fileReference";
+
     protected final ResourceResolver resourceResolver;
+    /**
+     * @deprecated no longer used by this class, kept for subclasses
+     */
+    @Deprecated
     protected final PageManager pageManager;
+    /**
+     * @deprecated no longer used by this class, kept for subclasses
+     */
+    @Deprecated
     protected final Page productPage;
+    private final ProductSnapshotCache snapshotCache;
+    private final BrandRegistry brandRegistry;
+    private ProductSnapshotCache.Snapshot snapshot;
     protected String brand = null;
 
     public WeRetailProductImpl(Resource resource) {
+        this(resource, null, null);
+    }
+
+    public WeRetailProductImpl(Resource resource, ProductSnapshotCache snapshotCache, BrandRegistry brandRegistry) {
         super(resource);
 
         resourceResolver = resource.getResourceResolver();
         pageManager = resourceResolver.adaptTo(PageManager.class);
-        productPage = pageManager.getContainingPage(resource);
+        productPage = pageManager != null ? pageManager.getContainingPage(resource) : null;
+        this.snapshotCache = snapshotCache;
+        this.brandRegistry = brandRegistry;
     }
 
     public String getSKU() {
-        String sku = getProperty(PN_IDENTIFIER, String.class);
-        // Geometrixx products don't have unique ids for size, so append the size to the sku:
-        String size = getProperty("size", String.class);
-        if (size != null && size.length() > 0) {
-            sku += "-" + size;
+        return getSnapshot().getSKU();
+    }
+
+    @Override
+    public String getTitle() {
+        return getSnapshot().getTitle();
+    }
+
+    @Override
+    public ImageResource getImage() {
+        String imagePath = getSnapshot().getImagePath();
+        Resource image = imagePath != null ? resourceResolver.getResource(imagePath) : null;
+        return image != null ? new ImageResource(image) : null;
+    }
+
+    /**
+     * Return the reference of the asset displayed as the product image, or an empty string if there is none.
+     */
+    public String getImageReference() {
+        return getSnapshot().getImageReference();
+    }
+
+    @Override
+    public Iterator<String> getVariantAxes() {
+        return getSnapshot().getVariantAxes().iterator();
+    }
+
+    @Override
+    public boolean axisIsVariant(String axis) {
+        return getSnapshot().getVariantAxes().contains(axis);
+    }
+
+    @Override
+    public Iterator<Product> getVariants(VariantFilter filter) throws CommerceException {
+        List<Product> variants = new ArrayList<Product>();
+        for (String path : getSnapshot().getVariantPaths()) {
+            // the variants are resolved again so that they remain subject to the access rights of the caller
+            Resource variant = resourceResolver.getResource(path);
+            if (variant != null) {
+                Product product = new WeRetailProductImpl(variant, snapshotCache, brandRegistry);
+                if (filter == null || filter.includes(product)) {
+                    variants.add(product);
+                }
+            }
         }
-        return sku;
+        return variants.iterator();
     }
 
     @Override
@@ -42,6 +122,9 @@ public class WeRetailProductImpl extends AbstractJcrProduct {
         if (name.equals("brand")) {
             return (T) getBrand();
         }
+        if (name.equals(PN_PRICE) && type == BigDecimal.class) {
+            return (T) getSnapshot().getPrice();
+        }
 
         return super.getProperty(name, type);
     }
@@ -58,13 +141,64 @@ public class WeRetailProductImpl extends AbstractJcrProduct {
     public String getBrand() {
         // A null value is considered as non-initialized
         if (brand == null) {
-            // Get value from root page title
-            if (productPage != null)
-                brand = WeRetailHelper.getPageTitle(productPage.getAbsoluteParent(2));
-            // Make sure that the value is not null, to avoid initializing it again
-            if (WeRetailHelper.isEmpty(brand))
+            String siteRootPath = getSnapshot().getSiteRootPath();
+            if (siteRootPath.length() == 0) {
                 brand = "";
+            } else if (brandRegistry != null) {
+                brand = brandRegistry.getBrand(siteRootPath);
+            } else {
+                // Get value from root page title
+                Resource siteRoot = resourceResolver.getResource(siteRootPath);
+                brand = WeRetailHelper.getPageTitle(siteRoot != null ? siteRoot.adaptTo(Page.class) : null);
+                // Make sure that the value is not null, to avoid initializing it again
+                if (WeRetailHelper.isEmpty(brand))
+                    brand = "";
+            }
         }
         return brand;
     }
+
+    private ProductSnapshotCache.Snapshot getSnapshot() {
+        if (snapshot == null) {
+            // the shared snapshot is taken by the service: the caller gets its own if it may not read all of it
+            ProductSnapshotCache.Snapshot shared = snapshotCache != null ? snapshotCache.get(getPath()) : null;
+            snapshot = shared != null && shared.isReadable(resourceResolver) ? shared : takeSnapshot();
+        }
+        return snapshot;
+    }
+
+    ProductSnapshotCache.Snapshot takeSnapshot() {
+        String sku = super.getProperty(PN_IDENTIFIER, String.class);
+        // Geometrixx products don't have unique ids for size, so append the size to the sku:
+        String size = super.getProperty("size", String.class);
+        if (size != null && size.length() > 0) {
+            sku += "-" + size;
+        }
+
+        // The brand is the title of the site root the product belongs to
+        String siteRootPath = Text.getAbsoluteParent(getPath(), BrandRegistry.SITE_ROOT_LEVEL);
+
+        Resource image = super.getImage();
+        String imageReference = image != null ? ResourceUtil.getValueMap(image).get(PN_FILE_REFERENCE, "") : "";
+
+        List<String> variantPaths = new ArrayList<String>();
+        try {
+            for (Iterator<Product> variants = super.getVariants(null); variants.hasNext();) {
+                variantPaths.add(variants.next().getPath());
+            }
+        } catch (CommerceException e) {
+            log.error("Cannot read the variants of " + getPath(), e);
+        }
+
+        List<String> variantAxes = new ArrayList<String>();
+        for (Iterator<String> axes = super.getVariantAxes(); axes != null && axes.hasNext();) {
+            variantAxes.add(axes.next());
+        }
+
+        String[] sources = { getPath(), ResourceUtil.getValueMap(resource).get(PN_PRODUCT_DATA, String.class) };
+        return new ProductSnapshotCache.Snapshot(sources, sku, siteRootPath, super.getProperty(PN_PRICE, BigDecimal.class),
+                super.getTitle(), image != null ? image.getPath() : null, imageReference,
+                Collections.unmodifiableList(variantAxes),
+                Collections.unmodifiableList(variantPaths));
+    }
 }
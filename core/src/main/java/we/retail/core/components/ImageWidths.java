@@ -0,0 +1,100 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <code>ImageWidths</code> holds the fixed set of widths the responsive we.Retail images are rendered in, and
+ * the quality each width is encoded with.  Images are only rendered in these widths, so that caches cannot be
+ * flooded with arbitrary sizes; components use {@link #getWidths()} to build their <code>srcset</code>.
+ */
+@Component(metatype = true,
+        label = "we.Retail Image Widths",
+        description = "Widths the responsive we.Retail images are rendered in")
+@Service(ImageWidths.class)
+public class ImageWidths {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageWidths.class);
+
+    private static final String[] DEFAULT_WIDTHS = { "320:0.65", "480:0.7", "768:0.75" };
+
+    @Property(value = { "320:0.65", "480:0.7", "768:0.75" }, label = "Widths",
+            description = "Supported image widths in pixels, each followed by the JPEG quality it is encoded with (width:quality)")
+    public static final String WIDTHS = "image.widths";
+
+    private volatile int[] widths = new int[0];
+    private volatile Map<Integer, Double> qualities = new TreeMap<Integer, Double>();
+
+    @SuppressWarnings ("unused")
+    @Activate
+    @Modified
+    private void activate(ComponentContext context) {
+        Map<Integer, Double> map = new TreeMap<Integer, Double>();
+        for (String entry : PropertiesUtil.toStringArray(context.getProperties().get(WIDTHS), DEFAULT_WIDTHS)) {
+            String[] parts = entry.split(":");
+            try {
+                int width = Integer.parseInt(parts[0].trim());
+                double quality = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : 0.75d;
+                if (width > 0 && quality > 0 && quality <= 1) {
+                    map.put(width, quality);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // logged below
+            }
+            log.warn("Ignoring invalid image width {}", entry);
+        }
+        int[] array = new int[map.size()];
+        int i = 0;
+        for (Integer width : map.keySet()) {
+            array[i++] = width;
+        }
+        qualities = map;
+        widths = array;
+    }
+
+    /**
+     * Return the supported widths, smallest first.
+     */
+    public int[] getWidths() {
+        return widths.clone();
+    }
+
+    public boolean isSupported(int width) {
+        return qualities.containsKey(width);
+    }
+
+    /**
+     * Return the quality images of the given width are encoded with, or <code>-1</code> if the width is not
+     * supported.
+     */
+    public double getQuality(int width) {
+        Double quality = qualities.get(width);
+        return quality != null ? quality : -1;
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import com.day.cq.commons.ImageHelper;
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.Rendition;
+import com.day.cq.dam.api.RenditionPicker;
+import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.commons.AbstractImageServlet;
+import com.day.image.Layer;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.jcr.RepositoryException;
+import javax.servlet.ServletException;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Base class of the servlets rendering a DAM asset referenced by the requested resource, scaled down to fit
+ * in {@link #MAX_WIDTH} x {@link #MAX_HEIGHT}, or in a smaller box if the servlet supports several sizes
+ * (see {@link #getWidth(SlingHttpServletRequest)}).
+ *
+ * The smallest rendition covering the output size is picked (see {@link SizeAwareRenditionPicker}), so that
+ * no resize is needed at all when a rendition of the right size exists.  Renditions are decoded with source
+ * subsampling (see {@link #decode(Rendition, int, int)}), and the encoded output is kept in the
+ * {@link ImageCache}, keyed by the servlet, the rendition and the last modification of the asset, and by the
+ * output type, size and quality.  The same key is sent as a strong <code>ETag</code>, along with the later of
+ * the last modifications of the asset and of the requested resource, so that revalidations are answered with
+ * a 304 before any imaging code runs.  Cache misses are rendered through the {@link ImageRenderCoordinator};
+ * requests it cannot serve in time are answered with a 503.
+ *
+ * Subclasses declare the references to the {@link ImageCache} and the {@link ImageRenderCoordinator}, bound
+ * with the methods of this class (see {@link ArticleImageServlet}).
+ */
+public abstract class AbstractAssetImageServlet extends AbstractImageServlet {
+
+    private static final Logger log = LoggerFactory.getLogger(AbstractAssetImageServlet.class);
+
+    protected static final int MAX_HEIGHT = 768;
+    protected static final int MAX_WIDTH = 768;
+    protected static final RenditionPicker RENDITION_PICKER = new SizeAwareRenditionPicker(MAX_WIDTH, MAX_HEIGHT);
+    protected static final double QUALITY = 0.75d;
+
+    /**
+     * Time in seconds during which clients and proxies may use a rendered image without revalidating it.
+     */
+    protected static final int MAX_AGE = 600;
+
+    /**
+     * Time in seconds after which clients are told to retry when image rendering is overloaded.
+     */
+    protected static final int RETRY_AFTER = 5;
+
+    private ImageCache imageCache;
+
+    private ImageRenderCoordinator renderCoordinator;
+
+    protected void bindImageCache(ImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    protected void unbindImageCache(ImageCache imageCache) {
+        if (this.imageCache == imageCache) {
+            this.imageCache = null;
+        }
+    }
+
+    protected void bindRenderCoordinator(ImageRenderCoordinator renderCoordinator) {
+        this.renderCoordinator = renderCoordinator;
+    }
+
+    protected void unbindRenderCoordinator(ImageRenderCoordinator renderCoordinator) {
+        if (this.renderCoordinator == renderCoordinator) {
+            this.renderCoordinator = null;
+        }
+    }
+
+    /**
+     * Return the asset to render for <code>resource</code>, or <code>null</code> if there is none.
+     */
+    protected abstract Asset getAsset(Resource resource);
+
+    /**
+     * Return the last modification of <code>resource</code>, which references the asset, or <code>0</code> if
+     * it is unknown.  Reads the <code>cq:lastModified</code> or <code>jcr:lastModified</code> property of the
+     * resource, or of its <code>jcr:content</code> child for pages.
+     */
+    protected long getReferenceLastModified(Resource resource) {
+        Resource content = resource.getChild(JcrConstants.JCR_CONTENT);
+        for (Resource candidate : new Resource[] { resource, content }) {
+            if (candidate != null) {
+                ValueMap properties = candidate.getValueMap();
+                Calendar lastModified = properties.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+                if (lastModified == null) {
+                    lastModified = properties.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+                }
+                if (lastModified != null) {
+                    return lastModified.getTimeInMillis();
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the width of the box the image requested by <code>request</code> has to fit in, or <code>0</code>
+     * if the requested size is not supported.  The height of the box follows from the aspect ratio of
+     * {@link #MAX_WIDTH} x {@link #MAX_HEIGHT}.  Returns {@link #MAX_WIDTH} by default.
+     */
+    protected int getWidth(SlingHttpServletRequest request) {
+        return MAX_WIDTH;
+    }
+
+    /**
+     * Return the quality images fitting in a box of the given width are encoded with.  Returns
+     * {@link #getImageQuality()} by default.
+     */
+    protected double getImageQuality(int width) {
+        return getImageQuality();
+    }
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
+        String type = getImageType(request.getRequestPathInfo().getExtension());
+        if (type == null) {
+            response.sendError(SlingHttpServletResponse.SC_NOT_FOUND, "Image type not supported");
+            return;
+        }
+
+        int width = getWidth(request);
+        if (width <= 0) {
+            response.sendError(SlingHttpServletResponse.SC_NOT_FOUND, "Image size not supported");
+            return;
+        }
+        int height = width * MAX_HEIGHT / MAX_WIDTH;
+        double quality = getImageQuality(width);
+
+        Asset asset = getAsset(request.getResource());
+        RenditionPicker picker = width == MAX_WIDTH ? RENDITION_PICKER : new SizeAwareRenditionPicker(width, height);
+        Rendition rendition = asset != null ? picker.getRendition(asset) : null;
+        if (rendition == null) {
+            writeMissingImage(request, response);
+            return;
+        }
+
+        //
+        // The cache key covers everything the output depends on, so it doubles as a strong validator; neither
+        // computing it nor answering a revalidation requires decoding anything:
+        //
+        String key = ImageCache.createKey(getClass().getName(), rendition.getPath(), asset.getLastModified(), type,
+                width, height, quality);
+        // the requested resource may have been switched to another (older) asset, so the validator is the later
+        // of both modifications
+        long lastModified = Math.max(asset.getLastModified(), getReferenceLastModified(request.getResource()));
+        String etag = "\"" + key + "\"";
+        response.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE);
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(SlingHttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(type);
+        if (writeCached(key, response)) {
+            return;
+        }
+
+        byte[] data;
+        try {
+            data = render(key, rendition, type, width, height, quality);
+        } catch (TimeoutException e) {
+            log.warn("Cannot render {}: {}", request.getRequestURI(), e.getMessage());
+            response.setHeader("Cache-Control", "no-store");
+            response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+            response.sendError(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE, "Image rendering is overloaded");
+            return;
+        }
+        response.setContentLength(data.length);
+        response.getOutputStream().write(data);
+        response.flushBuffer();
+    }
+
+    /**
+     * Render and cache the image through the {@link ImageRenderCoordinator}, so that concurrent requests for
+     * the same image share one rendering and the number of concurrent decodes is bounded.
+     */
+    private byte[] render(final String key, final Rendition rendition, final String type, final int width, final int height,
+                          final double quality) throws IOException, TimeoutException {
+        return renderCoordinator.render(key, new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                byte[] data = encode(createLayer(rendition, width, height), type, quality);
+                imageCache.put(key, data);
+                return data;
+            }
+        });
+    }
+
+    @Override
+    protected Layer createLayer(ImageContext imageContext) throws RepositoryException, IOException {
+        Asset asset = getAsset(imageContext.resource);
+        Rendition rendition = asset != null ? RENDITION_PICKER.getRendition(asset) : null;
+        return rendition != null ? createLayer(rendition, MAX_WIDTH, MAX_HEIGHT) : null;
+    }
+
+    /**
+     * Decode <code>rendition</code>, scaled down to fit in <code>maxWidth</code> x <code>maxHeight</code>.
+     */
+    protected Layer createLayer(Rendition rendition, int maxWidth, int maxHeight) throws IOException {
+        Layer layer = decode(rendition, maxWidth, maxHeight);
+        if (layer.getHeight() > maxHeight || layer.getWidth() > maxWidth) {
+            Layer resized = ImageHelper.resize(layer, new Dimension(), new Dimension(0, 0), new Dimension(maxWidth, maxHeight));
+            if (resized != null) {
+                layer = resized;
+            }
+        }
+        return layer;
+    }
+
+    /**
+     * Decode <code>rendition</code> with source subsampling, so that the decoded image is the smallest one
+     * (obtainable by subsampling) which still covers the size of the image scaled to fit in
+     * <code>maxWidth</code> x <code>maxHeight</code>.  The full-resolution raster of a large original is
+     * never materialised; memory use is bounded by a small multiple of the output size.
+     *
+     * Falls back to a full decode for the images ImageIO cannot read (such as CMYK JPEGs).  The rendition is
+     * buffered in memory rather than in a temporary file while it is read.
+     */
+    protected static Layer decode(Rendition rendition, int maxWidth, int maxHeight) throws IOException {
+        BufferedImage image = null;
+        InputStream stream = rendition.getStream();
+        if (stream == null) {
+            throw new IOException("Cannot read " + rendition.getPath());
+        }
+        ImageInputStream in = null;
+        try {
+            in = new MemoryCacheImageInputStream(stream);
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = (int) Math.floor(Math.max((double) width / maxWidth, (double) height / maxHeight));
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    image = reader.read(0, param);
+                } catch (IOException e) {
+                    log.debug("Cannot decode {} with ImageIO, falling back to a full decode", rendition.getPath());
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            stream.close();
+        }
+        if (image != null) {
+            return new Layer(image);
+        }
+
+        stream = rendition.getStream();
+        try {
+            return new Layer(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Override
+    protected double getImageQuality() {
+        return QUALITY;
+    }
+
+    /**
+     * Called when there is no asset to render.  Sends a 404 by default.
+     */
+    protected void writeMissingImage(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        response.sendError(SlingHttpServletResponse.SC_NOT_FOUND, "No image found");
+    }
+
+    protected static byte[] encode(Layer layer, String type, double quality) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        layer.write(type, quality, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Tell if the client already holds the image identified by <code>etag</code>.  <code>If-None-Match</code>
+     * takes precedence over <code>If-Modified-Since</code>, which is compared with a precision of one second.
+     */
+    private static boolean isNotModified(SlingHttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified <= 0) {
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Stream the image cached under <code>key</code> to the response.
+     *
+     * @return <code>false</code> if the image is not cached
+     */
+    private boolean writeCached(String key, SlingHttpServletResponse response) throws IOException {
+        File file = imageCache.get(key);
+        if (file == null) {
+            return false;
+        }
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            // evicted in the meantime
+            return false;
+        }
+        try {
+            response.setContentLength((int) in.getChannel().size());
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+            response.flushBuffer();
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+}
@@ -15,73 +15,92 @@
  */
 package we.retail.core.components.impl;
 
-import com.day.cq.commons.ImageHelper;
 import com.day.cq.commons.jcr.JcrConstants;
 import com.day.cq.dam.api.Asset;
-import com.day.cq.dam.api.Rendition;
-import com.day.cq.dam.api.RenditionPicker;
-import com.day.cq.wcm.commons.AbstractImageServlet;
-import com.day.cq.wcm.foundation.WCMRenditionPicker;
-import com.day.image.Layer;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.util.WeRetailHelper;
 
-import javax.jcr.RepositoryException;
-import java.awt.Dimension;
 import java.io.IOException;
 
 @SlingServlet(resourceTypes = "cq:Page", selectors = "article-image", extensions = "jpeg")
-public class ArticleImageServlet extends AbstractImageServlet  {
+@References({
+        @Reference(name = "imageCache", referenceInterface = ImageCache.class,
+                bind = "bindImageCache", unbind = "unbindImageCache"),
+        @Reference(name = "renderCoordinator", referenceInterface = ImageRenderCoordinator.class,
+                bind = "bindRenderCoordinator", unbind = "unbindRenderCoordinator")
+})
+public class ArticleImageServlet extends AbstractAssetImageServlet {
 
-    private static final RenditionPicker RENDITION_PICKER = new WCMRenditionPicker();
-    private static final int MAX_HEIGHT = 768;
-    private static final int MAX_WIDTH = 768;
-    private static final double QUALITY = 0.75d;
+    private static final Logger log = LoggerFactory.getLogger(ArticleImageServlet.class);
+
+    private static final String HERO_IMAGE_PATH = JcrConstants.JCR_CONTENT + "/root/hero_image";
+
+    @Reference
+    private MissingImageCache missingImageCache;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
 
     @Override
-    protected Layer createLayer(ImageContext imageContext) throws RepositoryException, IOException {
-        Resource heroImageResource = imageContext.resource.getChild(JcrConstants.JCR_CONTENT + "/root/hero_image");
-        if (heroImageResource != null) {
-            String heroFileReference = heroImageResource.getValueMap().get("fileReference", String.class);
+    protected Asset getAsset(Resource resource) {
+        if (missingImageCache.isMissing(resource.getPath())) {
+            return null;
+        }
+        ResourceResolver resourceResolver = resource.getResourceResolver();
+        Asset asset = getAsset(resourceResolver, getHeroFileReference(resourceResolver, resource.getPath()));
+        if (asset == null) {
+            confirmMissing(resource.getPath());
+        }
+        return asset;
+    }
 
-            if (heroFileReference != null) {
-                Resource heroResource = imageContext.resolver.getResource(heroFileReference);
-                if (heroResource != null) {
-                    Asset asset = heroResource.adaptTo(Asset.class);
-                    if (asset != null) {
-                        Rendition rendition = RENDITION_PICKER.getRendition(asset);
-                        if (rendition != null) {
-                            Layer layer = new Layer(rendition.getStream());
-                            if (layer.getHeight() > MAX_HEIGHT || layer.getWidth() > MAX_WIDTH) {
-                                Layer resized = ImageHelper.resize(layer, new Dimension(), new Dimension(0, 0), new Dimension(MAX_WIDTH, MAX_HEIGHT));
-                                if (resized != null) {
-                                    layer = resized;
-                                }
-                            }
-                            return layer;
-                        }
-                    }
-                }
+    /**
+     * Record the hero image of the page at <code>pagePath</code> as missing if the service cannot find it
+     * either: the cache is shared by all users, and the current user may just not be allowed to read it.
+     */
+    private void confirmMissing(String pagePath) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = WeRetailHelper.getServiceResourceResolver(resolverFactory, ImagePrerenderer.SUBSERVICE);
+            String heroFileReference = getHeroFileReference(resolver, pagePath);
+            if (getAsset(resolver, heroFileReference) == null) {
+                missingImageCache.putMissing(pagePath, heroFileReference);
+            }
+        } catch (LoginException e) {
+            log.warn("Cannot check the hero image of {}: {}", pagePath, e.getMessage());
+        } finally {
+            if (resolver != null) {
+                resolver.close();
             }
         }
-        return null;
     }
 
-    @Override
-    protected double getImageQuality() {
-        return QUALITY;
+    private static String getHeroFileReference(ResourceResolver resolver, String pagePath) {
+        Resource heroImageResource = resolver.getResource(pagePath + "/" + HERO_IMAGE_PATH);
+        return heroImageResource != null ? heroImageResource.getValueMap().get("fileReference", String.class) : null;
+    }
+
+    private static Asset getAsset(ResourceResolver resolver, String fileReference) {
+        Resource resource = fileReference != null ? resolver.getResource(fileReference) : null;
+        return resource != null ? resource.adaptTo(Asset.class) : null;
     }
 
     @Override
-    protected void writeLayer(SlingHttpServletRequest request, SlingHttpServletResponse response, ImageContext context, Layer layer, double quality) throws IOException, RepositoryException {
-        if (layer == null) {
-            // if we get to this point, there either is no hero image or the hero image can't be found,
-            // so we redirect to the page thumbnail
-            response.sendRedirect(request.getResource().getPath() + ".thumb.319.319.png");
-        } else {
-            super.writeLayer(request, response, context, layer, quality);
-        }
+    protected void writeMissingImage(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        // if we get to this point, there either is no hero image or the hero image can't be found,
+        // so we redirect to the page thumbnail; the redirect may be cached, as it only changes with the page
+        // or the referenced asset
+        response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE);
+        response.sendRedirect(request.getResource().getPath() + ".thumb.319.319.png");
     }
 }
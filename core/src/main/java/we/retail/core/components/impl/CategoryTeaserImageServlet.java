@@ -15,56 +15,65 @@
  */
 package we.retail.core.components.impl;
 
-import com.day.cq.commons.ImageHelper;
 import com.day.cq.dam.api.Asset;
-import com.day.cq.dam.api.Rendition;
-import com.day.cq.dam.api.RenditionPicker;
-import com.day.cq.wcm.commons.AbstractImageServlet;
-import com.day.cq.wcm.foundation.WCMRenditionPicker;
-import com.day.image.Layer;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import we.retail.core.components.ImageWidths;
 
-import javax.jcr.RepositoryException;
-import java.awt.Dimension;
-import java.io.IOException;
-
+/**
+ * Renders the image of a category teaser.  A width selector (<code>.img.480.jpeg</code>) requests the image
+ * in one of the {@link ImageWidths}; without it, the image is rendered in {@link #MAX_WIDTH}.
+ */
 @SlingServlet(resourceTypes = { "we-retail/components/content/category-teaser" }, selectors = "img", extensions = { "jpeg", "jpg", "png" })
-public class CategoryTeaserImageServlet extends AbstractImageServlet {
+@References({
+        @Reference(name = "imageCache", referenceInterface = ImageCache.class,
+                bind = "bindImageCache", unbind = "unbindImageCache"),
+        @Reference(name = "renderCoordinator", referenceInterface = ImageRenderCoordinator.class,
+                bind = "bindRenderCoordinator", unbind = "unbindRenderCoordinator")
+})
+public class CategoryTeaserImageServlet extends AbstractAssetImageServlet {
 
-    private static final RenditionPicker RENDITION_PICKER = new WCMRenditionPicker();
-    private static final int MAX_HEIGHT = 768;
-    private static final int MAX_WIDTH = 768;
-    private static final double QUALITY = 0.75d;
+    @Reference
+    private ImageWidths imageWidths;
 
     @Override
-    protected Layer createLayer(ImageContext imageContext) throws RepositoryException, IOException {
-        String imageReference = imageContext.properties.get("fileReference", String.class);
-        if (imageReference == null) {
-            return null;
-        }
-        Resource image = imageContext.resolver.getResource(imageReference);
-        if (image == null) {
-            return null;
-        }
-        Asset asset = image.adaptTo(Asset.class);
-        if (asset == null) {
-            return null;
+    protected int getWidth(SlingHttpServletRequest request) {
+        String[] selectors = request.getRequestPathInfo().getSelectors();
+        if (selectors.length == 1) {
+            return MAX_WIDTH;
         }
-        Rendition rendition = RENDITION_PICKER.getRendition(asset);
-        Layer layer = new Layer(rendition.getStream());
-        if (layer.getHeight() > MAX_HEIGHT || layer.getWidth() > MAX_WIDTH) {
-            Layer resized = ImageHelper.resize(layer, new Dimension(), new Dimension(0, 0), new Dimension(MAX_WIDTH, MAX_HEIGHT));
-            if (resized != null) {
-                layer = resized;
+        if (selectors.length == 2) {
+            try {
+                int width = Integer.parseInt(selectors[1]);
+                if (imageWidths.isSupported(width)) {
+                    return width;
+                }
+            } catch (NumberFormatException e) {
+                // not a width
             }
         }
-        return layer;
+        return 0;
+    }
 
+    @Override
+    protected double getImageQuality(int width) {
+        double quality = imageWidths.getQuality(width);
+        return quality > 0 ? quality : getImageQuality();
     }
 
     @Override
-    protected double getImageQuality() {
-        return QUALITY;
+    protected Asset getAsset(Resource resource) {
+        String imageReference = resource.getValueMap().get("fileReference", String.class);
+        if (imageReference == null) {
+            return null;
+        }
+        Resource image = resource.getResourceResolver().getResource(imageReference);
+        if (image == null) {
+            return null;
+        }
+        return image.adaptTo(Asset.class);
     }
 }
@@ -0,0 +1,208 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <code>ImageCache</code> keeps the encoded output of the we.Retail image servlets on disk, so that a request
+ * for an image which has been rendered before costs a file read instead of a decode, resize and encode.
+ *
+ * Keys are derived from everything the output depends on (see {@link #createKey(Object...)}), including the
+ * last modification of the asset, so entries never need to be invalidated: outdated entries are no longer
+ * requested and are eventually evicted.  The cache is bounded in size and evicts the least recently used
+ * entries first.
+ */
+@Component(metatype = true,
+        label = "we.Retail Image Cache",
+        description = "Disk cache for the images rendered by the we.Retail image servlets")
+@Service(ImageCache.class)
+public class ImageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageCache.class);
+
+    private static final String FILE_EXTENSION = ".img";
+
+    @Property(value = "", label = "Directory", description = "Cache directory; defaults to a directory in the bundle data area")
+    public static final String DIRECTORY = "image.cache.directory";
+
+    @Property(intValue = 256, label = "Maximum size", description = "Maximum size of the cache, in megabytes")
+    public static final String MAX_SIZE = "image.cache.maxSize";
+
+    private File directory;
+    private long maxSize;
+    private long size;
+
+    /**
+     * The cached entries and their size, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) {
+        String path = PropertiesUtil.toString(context.getProperties().get(DIRECTORY), "");
+        directory = path.length() > 0 ? new File(path) : context.getBundleContext().getDataFile("image-cache");
+        maxSize = PropertiesUtil.toInteger(context.getProperties().get(MAX_SIZE), 256) * 1024L * 1024L;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.error("Cannot create image cache directory {}", directory);
+        }
+        load();
+    }
+
+    /**
+     * Return a cache key for an image rendered from the given parts.
+     */
+    public static String createKey(Object... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Object part : parts) {
+                digest.update(String.valueOf(part).getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the file holding the image cached under <code>key</code>, or <code>null</code> if there is none.
+     * The file may be evicted at any time, so callers should open it right away and treat a failure to do so
+     * as a cache miss.
+     */
+    public File get(String key) {
+        synchronized (entries) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+        return getFile(key);
+    }
+
+    /**
+     * Cache an encoded image under <code>key</code>, evicting the least recently used images if the cache
+     * grows beyond its maximum size.
+     */
+    public void put(String key, byte[] data) {
+        if (directory == null || data.length > maxSize) {
+            return;
+        }
+        File file = getFile(key);
+        File tmpFile = new File(directory, key + ".tmp" + Thread.currentThread().getId());
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(data);
+            out.close();
+            out = null;
+            synchronized (entries) {
+                if (!tmpFile.renameTo(file)) {
+                    return;
+                }
+                Long previous = entries.put(key, (long) data.length);
+                size += data.length - (previous != null ? previous : 0);
+                evict();
+            }
+        } catch (IOException e) {
+            log.warn("Cannot cache image " + key, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                log.warn("Cannot delete {}", tmpFile);
+            }
+        }
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+             size > maxSize && iterator.hasNext();) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getValue();
+            if (!getFile(eldest.getKey()).delete()) {
+                log.warn("Cannot delete cached image {}", eldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Register the images cached by a previous run, oldest first.
+     */
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(FILE_EXTENSION)) {
+                    entries.put(name.substring(0, name.length() - FILE_EXTENSION.length()), file.length());
+                    size += file.length();
+                } else if (!file.delete()) {
+                    log.warn("Cannot delete {}", file);
+                }
+            }
+            evict();
+        }
+        log.info("Image cache {} holds {} images ({} bytes)", new Object[] { directory, entries.size(), size });
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + FILE_EXTENSION);
+    }
+}
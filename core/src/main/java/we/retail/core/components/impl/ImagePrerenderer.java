@@ -0,0 +1,333 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import com.day.cq.contentsync.handler.util.RequestResponseFactory;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.components.ImageWidths;
+import we.retail.core.util.WeRetailHelper;
+
+import javax.jcr.query.Query;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>ImagePrerenderer</code> renders the article images and category teaser images of the pages which are
+ * changed (e.g. activated) below the we.Retail content root, or whose image assets are changed, into the
+ * {@link ImageCache}, so that the first visitor after a content push does not pay for decoding and resizing.
+ *
+ * Images are rendered by processing internal GET requests for them, so they go through exactly the same
+ * servlets, keys and {@link ImageRenderCoordinator} as regular requests.  Pages are handled one at a time on
+ * a low-priority thread; when its bounded queue is full, further pages are left to be rendered on demand.
+ */
+@Component(metatype = true,
+        label = "we.Retail Image Prerenderer",
+        description = "Renders the images of changed we.Retail pages ahead of the first request")
+@Service(ResourceChangeListener.class)
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = { ImagePrerenderer.CONTENT_ROOT, ImagePrerenderer.DAM_ROOT }, propertyPrivate = true),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED" }, propertyPrivate = true)
+})
+public class ImagePrerenderer implements ResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ImagePrerenderer.class);
+
+    static final String CONTENT_ROOT = "/content/we-retail";
+    static final String DAM_ROOT = "/content/dam/we-retail";
+
+    /**
+     * Sub-service used to read the pages and assets and to render the images.
+     */
+    static final String SUBSERVICE = "images";
+
+    private static final String HERO_IMAGE_PATH = "jcr:content/root/hero_image";
+    private static final String CATEGORY_TEASER_TYPE = "we-retail/components/content/category-teaser";
+
+    /**
+     * Time in seconds deactivation waits for the image being rendered.
+     */
+    private static final int SHUTDOWN_TIMEOUT = 10;
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Property(boolValue = true, label = "Enable", description = "Render the images of changed pages in the background")
+    public static final String ENABLED = "image.prerender.enabled";
+
+    @Property(intValue = 100, label = "Queue size", description = "Maximum number of pages waiting to have their images rendered")
+    public static final String QUEUE_SIZE = "image.prerender.queueSize";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private SlingRequestProcessor requestProcessor;
+
+    @Reference
+    private RequestResponseFactory requestResponseFactory;
+
+    @Reference
+    private ImageWidths imageWidths;
+
+    /**
+     * The pages which are queued, so that a page changed several times is only rendered once.
+     */
+    private final Set<String> queuedPages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile ThreadPoolExecutor executor;
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) {
+        if (!PropertiesUtil.toBoolean(context.getProperties().get(ENABLED), true)) {
+            return;
+        }
+        int queueSize = Math.max(1, PropertiesUtil.toInteger(context.getProperties().get(QUEUE_SIZE), 100));
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "we.Retail image prerenderer");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor != null) {
+            // the worker is not interrupted, as that would close the repository session it is using; it stops
+            // after the image being rendered, and the pages still queued are left to be rendered on demand
+            this.executor = null;
+            executor.shutdown();
+            executor.getQueue().clear();
+            try {
+                if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                    log.warn("Image prerendering did not stop within {} seconds", SHUTDOWN_TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        queuedPages.clear();
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        if (executor == null) {
+            return;
+        }
+        final Set<String> pagePaths = new LinkedHashSet<String>();
+        final Set<String> assetPaths = new LinkedHashSet<String>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (path.startsWith(DAM_ROOT + "/")) {
+                assetPaths.add(getNodePath(path));
+            } else {
+                pagePaths.add(getNodePath(path));
+            }
+        }
+
+        // the pages referencing a changed asset are looked up in the background as well
+        if (!assetPaths.isEmpty()) {
+            submit(new Runnable() {
+                public void run() {
+                    for (String pagePath : getReferencingPages(assetPaths)) {
+                        schedule(pagePath);
+                    }
+                }
+            });
+        }
+        for (String pagePath : pagePaths) {
+            schedule(pagePath);
+        }
+    }
+
+    private void schedule(final String pagePath) {
+        if (!queuedPages.add(pagePath)) {
+            return;
+        }
+        boolean submitted = submit(new Runnable() {
+            public void run() {
+                queuedPages.remove(pagePath);
+                prerender(pagePath);
+            }
+        });
+        if (!submitted) {
+            queuedPages.remove(pagePath);
+        }
+    }
+
+    private boolean submit(Runnable task) {
+        ThreadPoolExecutor executor = this.executor;
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Image prerendering queue is full, images will be rendered on demand");
+            return false;
+        }
+    }
+
+    /**
+     * Render the article image and the category teaser images of the page containing <code>path</code>.
+     */
+    private void prerender(String path) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = getServiceResolver();
+            PageManager pageManager = resolver.adaptTo(PageManager.class);
+            Resource resource = resolver.getResource(path);
+            Page page = resource != null && pageManager != null ? pageManager.getContainingPage(resource) : null;
+            if (page == null) {
+                return;
+            }
+
+            List<String> imagePaths = new ArrayList<String>();
+            Resource heroImage = page.adaptTo(Resource.class).getChild(HERO_IMAGE_PATH);
+            if (heroImage != null && heroImage.getValueMap().get("fileReference", String.class) != null) {
+                imagePaths.add(page.getPath() + ".article-image.jpeg");
+            }
+            Resource content = page.getContentResource();
+            if (content != null) {
+                addTeaserImagePaths(content, imagePaths);
+            }
+            for (String imagePath : imagePaths) {
+                render(resolver, imagePath);
+            }
+        } catch (LoginException e) {
+            log.error("Cannot prerender the images of " + path, e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    private void addTeaserImagePaths(Resource resource, List<String> imagePaths) {
+        if (resource.isResourceType(CATEGORY_TEASER_TYPE)) {
+            if (resource.getValueMap().get("fileReference", String.class) != null) {
+                imagePaths.add(resource.getPath() + ".img.jpeg");
+                for (int width : imageWidths.getWidths()) {
+                    imagePaths.add(resource.getPath() + ".img." + width + ".jpeg");
+                }
+            }
+            return;
+        }
+        for (Resource child : resource.getChildren()) {
+            addTeaserImagePaths(child, imagePaths);
+        }
+    }
+
+    private void render(ResourceResolver resolver, String imagePath) {
+        if (executor == null) {
+            return;
+        }
+        try {
+            HttpServletRequest request = requestResponseFactory.createRequest("GET", imagePath);
+            HttpServletResponse response = requestResponseFactory.createResponse(DISCARD);
+            requestProcessor.processRequest(request, response, resolver);
+            log.debug("Prerendered {}", imagePath);
+        } catch (Exception e) {
+            log.warn("Cannot prerender " + imagePath, e);
+        }
+    }
+
+    /**
+     * Return the pages below {@link #CONTENT_ROOT} referencing one of the given assets.
+     */
+    private Set<String> getReferencingPages(Set<String> assetPaths) {
+        Set<String> pagePaths = new LinkedHashSet<String>();
+        ResourceResolver resolver = null;
+        try {
+            resolver = getServiceResolver();
+            for (String assetPath : assetPaths) {
+                if (executor == null) {
+                    break;
+                }
+                String query = "/jcr:root" + CONTENT_ROOT + "//*[@fileReference = '" + assetPath.replace("'", "''") + "']";
+                Iterator<Resource> references = resolver.findResources(query, Query.XPATH);
+                while (references.hasNext()) {
+                    pagePaths.add(getNodePath(references.next().getPath()));
+                }
+            }
+        } catch (LoginException e) {
+            log.error("Cannot look up the pages referencing " + assetPaths, e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+        return pagePaths;
+    }
+
+    /**
+     * Return the path of the page or asset <code>path</code> belongs to, i.e. <code>path</code> without its
+     * <code>jcr:content</code> part.
+     */
+    private static String getNodePath(String path) {
+        int content = path.indexOf(WeRetailHelper.JCR_CONTENT_SEGMENT);
+        return content >= 0 ? path.substring(0, content) : path;
+    }
+
+    private ResourceResolver getServiceResolver() throws LoginException {
+        return WeRetailHelper.getServiceResourceResolver(resolverFactory, SUBSERVICE);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <code>ImageRenderCoordinator</code> runs the image renderings of the we.Retail image servlets.
+ *
+ * Concurrent requests for the same image (same cache key) are collapsed into a single rendering whose result
+ * is handed to all of them, and the number of renderings running at the same time is capped, so that a
+ * burst of requests (e.g. after a dispatcher flush) cannot exhaust the heap with decoded images.  Requests
+ * which cannot be served within the configured timeout fail with a {@link TimeoutException}.
+ */
+@Component(metatype = true,
+        label = "we.Retail Image Render Coordinator",
+        description = "Limits and coalesces the image renderings of the we.Retail image servlets")
+@Service(ImageRenderCoordinator.class)
+public class ImageRenderCoordinator {
+
+    @Property(intValue = 4, label = "Maximum concurrent renderings", description = "Maximum number of images decoded at the same time")
+    public static final String MAX_CONCURRENT = "image.render.maxConcurrent";
+
+    @Property(intValue = 10000, label = "Timeout", description = "Time in milliseconds a request waits for its image to be rendered")
+    public static final String TIMEOUT = "image.render.timeout";
+
+    private final ConcurrentMap<String, FutureTask<byte[]>> renderings = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    private Semaphore permits;
+    private long timeout;
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) {
+        permits = new Semaphore(Math.max(1, PropertiesUtil.toInteger(context.getProperties().get(MAX_CONCURRENT), 4)), true);
+        timeout = PropertiesUtil.toLong(context.getProperties().get(TIMEOUT), 10000);
+    }
+
+    /**
+     * Return the image rendered by <code>renderer</code> for <code>key</code>, joining the rendering of that
+     * key if one is already running.
+     *
+     * @throws TimeoutException if the image could not be rendered within the configured timeout, either because
+     *                          too many renderings are running or because the rendering is too slow
+     */
+    public byte[] render(String key, final Callable<byte[]> renderer) throws IOException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeout;
+        FutureTask<byte[]> rendering = renderings.get(key);
+        if (rendering == null) {
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                        throw new TimeoutException("Too many images are being rendered");
+                    }
+                    try {
+                        return renderer.call();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+            rendering = renderings.putIfAbsent(key, task);
+            if (rendering == null) {
+                rendering = task;
+                try {
+                    task.run();
+                } finally {
+                    renderings.remove(key, task);
+                }
+            }
+        }
+
+        try {
+            return rendering.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rendering image " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof TimeoutException) {
+                throw (TimeoutException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Cannot render image " + key, cause);
+        }
+    }
+}
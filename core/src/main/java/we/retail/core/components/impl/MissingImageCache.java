@@ -0,0 +1,126 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.component.ComponentContext;
+import we.retail.core.util.WeRetailHelper;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <code>MissingImageCache</code> remembers the pages which have no image to render, so that the image
+ * servlets do not resolve the same missing or dangling references on every request.
+ *
+ * An entry is dropped as soon as anything changes in the page, or when the asset it references (if any) is
+ * changed below <code>/content/dam/we-retail</code>, for instance because it is uploaded after the page was
+ * published.  The cache is bounded and evicts the least recently used pages first.
+ */
+@Component(metatype = true,
+        label = "we.Retail Missing Image Cache",
+        description = "Remembers the pages without an image to render")
+@Service({ MissingImageCache.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = { "/content/we-retail", "/content/dam/we-retail" }, propertyPrivate = true),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" }, propertyPrivate = true)
+})
+public class MissingImageCache implements ResourceChangeListener {
+
+    @Property(intValue = 10000, label = "Maximum size", description = "Maximum number of pages remembered")
+    public static final String MAX_SIZE = "image.missing.maxSize";
+
+    private static final String NO_REFERENCE = "";
+
+    private int maxSize = 10000;
+
+    /**
+     * The pages without an image, mapped to the asset path they reference, least recently used first.
+     */
+    private final LinkedHashMap<String, String> missing = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) {
+        maxSize = Math.max(0, PropertiesUtil.toInteger(context.getProperties().get(MAX_SIZE), 10000));
+    }
+
+    public boolean isMissing(String pagePath) {
+        synchronized (missing) {
+            return missing.get(pagePath) != null;
+        }
+    }
+
+    /**
+     * Remember that the page <code>pagePath</code> has no image to render.
+     *
+     * @param reference the path of the asset the page references, or <code>null</code> if there is none
+     */
+    public void putMissing(String pagePath, String reference) {
+        synchronized (missing) {
+            missing.put(pagePath, reference != null ? reference : NO_REFERENCE);
+        }
+    }
+
+    public void onChange(List<ResourceChange> changes) {
+        Set<String> changedPaths = new HashSet<String>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            int content = path.indexOf(WeRetailHelper.JCR_CONTENT_SEGMENT);
+            changedPaths.add(content >= 0 ? path.substring(0, content) : path);
+        }
+        synchronized (missing) {
+            for (Iterator<Map.Entry<String, String>> iterator = missing.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry<String, String> entry = iterator.next();
+                if (isAffected(entry.getKey(), changedPaths) || isAffected(entry.getValue(), changedPaths)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell if <code>path</code> or one of its ancestors is among the changed paths.  References which are not
+     * absolute repository paths (e.g. relative or external ones) are only compared as a whole.
+     */
+    private static boolean isAffected(String path, Set<String> changedPaths) {
+        String current = path;
+        while (!changedPaths.contains(current)) {
+            int slash = current.lastIndexOf('/');
+            if (slash <= 0) {
+                return false;
+            }
+            current = current.substring(0, slash);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *   Copyright 2016 Adobe Systems Incorporated
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package we.retail.core.components.impl;
+
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.Rendition;
+import com.day.cq.dam.api.RenditionPicker;
+import com.day.cq.wcm.foundation.WCMRenditionPicker;
+import org.apache.sling.api.resource.ValueMap;
+
+import java.awt.Dimension;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link RenditionPicker} returning the smallest rendition of an asset which is still at least as large as
+ * the asset scaled down to fit in a given box, so that as little as possible has to be decoded and resized.
+ *
+ * Dimensions are never obtained by decoding: they are read from the <code>tiff:ImageWidth</code> and
+ * <code>tiff:ImageLength</code> metadata of the asset or rendition, or derived from the bounding box encoded
+ * in the name of the standard <code>cq5dam.*.&lt;width&gt;.&lt;height&gt;.*</code> renditions.  Assets
+ * whose original dimensions are unknown are handled by the {@link WCMRenditionPicker}.
+ */
+public class SizeAwareRenditionPicker implements RenditionPicker {
+
+    private static final RenditionPicker FALLBACK_PICKER = new WCMRenditionPicker();
+
+    private static final Pattern RENDITION_NAME = Pattern.compile("cq5dam\\.[^.]+\\.(\\d+)\\.(\\d+)(\\..*)?");
+
+    private static final String PN_WIDTH = "tiff:ImageWidth";
+    private static final String PN_HEIGHT = "tiff:ImageLength";
+
+    private final int maxWidth;
+    private final int maxHeight;
+
+    public SizeAwareRenditionPicker(int maxWidth, int maxHeight) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    public Rendition getRendition(Asset asset) {
+        Rendition original = asset.getOriginal();
+        Dimension originalSize = getOriginalSize(asset, original);
+        if (originalSize == null) {
+            return FALLBACK_PICKER.getRendition(asset);
+        }
+
+        Dimension target = fit(originalSize, maxWidth, maxHeight);
+        Rendition best = original;
+        long bestArea = (long) originalSize.width * originalSize.height;
+        for (Rendition rendition : asset.getRenditions()) {
+            if (rendition == null || original != null && rendition.getPath().equals(original.getPath())) {
+                continue;
+            }
+            String mimeType = rendition.getMimeType();
+            if (mimeType == null || !mimeType.startsWith("image/")) {
+                continue;
+            }
+            Dimension size = getSize(rendition, originalSize);
+            if (size == null || size.width < target.width || size.height < target.height) {
+                continue;
+            }
+            long area = (long) size.width * size.height;
+            if (best == null || area < bestArea) {
+                best = rendition;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Return the size of <code>size</code> scaled down (never up) to fit in <code>width</code> x
+     * <code>height</code>, keeping its aspect ratio.
+     */
+    static Dimension fit(Dimension size, int width, int height) {
+        double scale = Math.min(1d, Math.min((double) width / size.width, (double) height / size.height));
+        return new Dimension((int) Math.round(size.width * scale), (int) Math.round(size.height * scale));
+    }
+
+    private static Dimension getOriginalSize(Asset asset, Rendition original) {
+        Dimension size = parse(asset.getMetadataValue(PN_WIDTH), asset.getMetadataValue(PN_HEIGHT));
+        if (size == null && original != null) {
+            size = getMetadataSize(original);
+        }
+        return size;
+    }
+
+    private static Dimension getSize(Rendition rendition, Dimension originalSize) {
+        Dimension size = getMetadataSize(rendition);
+        if (size != null) {
+            return size;
+        }
+        Matcher matcher = RENDITION_NAME.matcher(rendition.getName());
+        if (matcher.matches()) {
+            return fit(originalSize, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        }
+        return null;
+    }
+
+    private static Dimension getMetadataSize(Rendition rendition) {
+        ValueMap properties = rendition.getProperties();
+        if (properties == null) {
+            return null;
+        }
+        return parse(properties.get(PN_WIDTH, String.class), properties.get(PN_HEIGHT, String.class));
+    }
+
+    private static Dimension parse(String width, String height) {
+        try {
+            if (width != null && height != null) {
+                Dimension size = new Dimension(Integer.parseInt(width.trim()), Integer.parseInt(height.trim()));
+                if (size.width > 0 && size.height > 0) {
+                    return size;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // unusable metadata
+        }
+        return null;
+    }
+}
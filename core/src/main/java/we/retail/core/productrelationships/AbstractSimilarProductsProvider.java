@@ -0,0 +1,159 @@
+package we.retail.core.productrelationships;
+
+
+import com.adobe.cq.commerce.api.CommerceConstants;
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.CommerceSession;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import com.adobe.cq.commerce.api.ProductRelationshipsProvider;
+import com.day.cq.commons.inherit.HierarchyNodeInheritanceValueMap;
+import com.day.cq.commons.inherit.InheritanceValueMap;
+import com.day.cq.wcm.api.Page;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Base class of the providers recommending products which share tags with a set of context products.
+ *
+ * Candidates are looked up in the {@link ProductTagIndex}; the products tree is only walked (serially, or
+ * in parallel if so configured) when the index is not available.  The ranked results are cached per set of
+ * context products in a {@link RelationshipCache}.
+ *
+ * Subclasses declare their configuration properties prefixed with their relationship type; the suffixes
+ * are defined by this class.  They also declare the reference to the {@link ProductTagIndex}, bound with the
+ * methods of this class.
+ */
+public abstract class AbstractSimilarProductsProvider implements ProductRelationshipsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(AbstractSimilarProductsProvider.class);
+
+    static final String PRODUCTS_ROOT = "/content/we-retail/language-masters/en/products";
+
+    protected static final String ENABLED_SUFFIX = ".enabled";
+    protected static final String MAX_RESULTS_SUFFIX = ".maxResults";
+    protected static final String CACHE_SIZE_SUFFIX = ".cache.size";
+    protected static final String CACHE_TTL_SUFFIX = ".cache.ttl";
+    protected static final String PARALLEL_WALK_SUFFIX = ".parallelWalk";
+    protected static final String WALK_PARALLELISM_SUFFIX = ".parallelWalk.parallelism";
+
+    protected ProductTagIndex productTagIndex;
+
+    protected boolean enabled;
+    protected int maxResults;
+    protected RelationshipCache cache;
+    private ForkJoinPool walkPool;
+    private ParallelProductWalker parallelWalker;
+
+    protected void bindProductTagIndex(ProductTagIndex productTagIndex) {
+        this.productTagIndex = productTagIndex;
+    }
+
+    protected void unbindProductTagIndex(ProductTagIndex productTagIndex) {
+        if (this.productTagIndex == productTagIndex) {
+            this.productTagIndex = null;
+        }
+    }
+
+    protected abstract String getRelationshipType();
+
+    protected abstract String getRelationshipTitle();
+
+    /**
+     * Read the configuration properties whose names are the relationship type followed by the suffixes above.
+     */
+    protected void configure(Dictionary<?, ?> properties) {
+        String prefix = getRelationshipType();
+        enabled = PropertiesUtil.toBoolean(properties.get(prefix + ENABLED_SUFFIX), true);
+        maxResults = PropertiesUtil.toInteger(properties.get(prefix + MAX_RESULTS_SUFFIX), 0);
+        cache = new RelationshipCache(PropertiesUtil.toInteger(properties.get(prefix + CACHE_SIZE_SUFFIX), 500),
+                PropertiesUtil.toInteger(properties.get(prefix + CACHE_TTL_SUFFIX), 600) * 1000L);
+        if (PropertiesUtil.toBoolean(properties.get(prefix + PARALLEL_WALK_SUFFIX), false)) {
+            walkPool = new ForkJoinPool(Math.max(1, PropertiesUtil.toInteger(properties.get(prefix + WALK_PARALLELISM_SUFFIX), 4)));
+            // split the products root and its sections (men, women, equipment...) into separate tasks
+            parallelWalker = new ParallelProductWalker(walkPool, 2);
+        }
+    }
+
+    protected void release() {
+        log.info("{} cache: {} hits, {} misses", new Object[] { getRelationshipType(), cache.getHits(), cache.getMisses() });
+        cache.clear();
+        if (walkPool != null) {
+            walkPool.shutdown();
+            walkPool = null;
+            parallelWalker = null;
+        }
+    }
+
+    @Override
+    public Map<String, String> getRelationshipTypes() {
+        Map<String, String> types = new HashMap<String, String>(0);
+        types.put(getRelationshipType(), getRelationshipTitle());
+        return types;
+    }
+
+    /**
+     * Tell if relationships should be provided for <code>currentPage</code>: they are not provided to
+     * non-we-retail pages.
+     */
+    protected boolean isWeRetailPage(Page currentPage) {
+        if (currentPage != null) {
+            InheritanceValueMap properties = new HierarchyNodeInheritanceValueMap(currentPage.getContentResource());
+            String commerceProvider = properties.getInherited(CommerceConstants.PN_COMMERCE_PROVIDER, String.class);
+            if (commerceProvider != null && !commerceProvider.equals("we-retail")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the products sharing tags with the context products, best matches first.
+     */
+    protected List<ProductRelationship> getSimilarProducts(SlingHttpServletRequest request, CommerceSession session,
+                                                           List<Product> contextProducts) throws CommerceException {
+        ResourceResolver resolver = request.getResourceResolver();
+        SimilarProductsCollector collector = new SimilarProductsCollector(resolver, session, getRelationshipType(),
+                getRelationshipTitle(), contextProducts, maxResults, productTagIndex.getTagDictionary());
+
+        //
+        // The ranking only depends on the context products and on the indexed content, so it is cached per
+        // set of base SKUs and products root; only the prices are looked up again:
+        //
+        List<String> contextSKUs = new ArrayList<String>(collector.getExclusionSKUs());
+        Collections.sort(contextSKUs);
+        String cacheKey = PRODUCTS_ROOT + ":" + StringUtils.join(contextSKUs, ",");
+        long generation = productTagIndex.getGeneration();
+        List<RelationshipCache.CachedRelationship> cached = cache.get(cacheKey, generation);
+        if (cached != null) {
+            return collector.restore(cached);
+        }
+
+        //
+        // Look up the products sharing a tag with the context in the tag index, falling back to walking
+        // the content-pages if the index is not available:
+        //
+        List<ProductTagIndex.IndexedProduct> candidates = productTagIndex.getCandidates(PRODUCTS_ROOT,
+                collector.getMatchTags(), collector.getExclusionSKUs());
+        if (candidates != null) {
+            collector.collect(candidates);
+        } else if (parallelWalker == null || !parallelWalker.walk(collector, PRODUCTS_ROOT)) {
+            collector.walk(resolver.getResource(PRODUCTS_ROOT));
+        }
+        List<ProductRelationship> relationships = collector.getRelationships();
+        cache.put(cacheKey, generation, SimilarProductsCollector.toCached(relationships));
+        return relationships;
+    }
+}
@@ -0,0 +1,168 @@
+package we.retail.core.productrelationships;
+
+
+import com.adobe.cq.commerce.api.Product;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a products tree on a {@link ForkJoinPool}, as a parallel alternative to
+ * {@link SimilarProductsCollector#walk(Resource)}.
+ *
+ * The top levels of the tree (down to <code>splitDepth</code>) are split into one task per child; each task
+ * reads the repository with its own clone of the collector's resolver, so that the walk only sees the
+ * products the serial walk would see.  Candidates are merged into a concurrent map
+ * with the collector's ranking, which is a total order, so the result is the same as the one of the serial
+ * walk.  Candidates are handed over by path: their products are resolved again with the collector's
+ * resolver when (and only when) they make it into the result.
+ */
+class ParallelProductWalker {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelProductWalker.class);
+
+    private final ForkJoinPool pool;
+    private final int splitDepth;
+
+    ParallelProductWalker(ForkJoinPool pool, int splitDepth) {
+        this.pool = pool;
+        this.splitDepth = splitDepth;
+    }
+
+    /**
+     * Walk the products below <code>rootPath</code> and add the matching ones to <code>collector</code>.
+     *
+     * @return <code>false</code> if the walk failed, in which case nothing has been added to the collector
+     */
+    boolean walk(SimilarProductsCollector collector, String rootPath) {
+        ConcurrentMap<String, SimilarProductsCollector.Candidate> candidates =
+                new ConcurrentHashMap<String, SimilarProductsCollector.Candidate>();
+        try {
+            pool.invoke(new WalkTask(collector, candidates, rootPath, 0));
+        } catch (RuntimeException e) {
+            log.error("Parallel walk of " + rootPath + " failed", e);
+            return false;
+        }
+        for (SimilarProductsCollector.Candidate candidate : candidates.values()) {
+            collector.addCandidate(candidate);
+        }
+        return true;
+    }
+
+    /**
+     * Return a resolver with the same credentials as the collector's one, which (unlike it) may be used by
+     * the calling task.
+     */
+    private static ResourceResolver cloneResolver(SimilarProductsCollector collector) {
+        try {
+            return collector.resolver.clone(null);
+        } catch (LoginException e) {
+            throw new IllegalStateException("Cannot clone the resource resolver", e);
+        }
+    }
+
+    private class WalkTask extends RecursiveAction {
+        private final SimilarProductsCollector collector;
+        private final ConcurrentMap<String, SimilarProductsCollector.Candidate> candidates;
+        private final String path;
+        private final int depth;
+
+        private int[] matchBuffer;
+
+        WalkTask(SimilarProductsCollector collector, ConcurrentMap<String, SimilarProductsCollector.Candidate> candidates,
+                 String path, int depth) {
+            this.collector = collector;
+            this.candidates = candidates;
+            this.path = path;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subtasks = new ArrayList<WalkTask>();
+            ResourceResolver resolver = cloneResolver(collector);
+            try {
+                Resource resource = resolver.getResource(path);
+                if (resource == null) {
+                    return;
+                }
+                PageManager pageManager = resolver.adaptTo(PageManager.class);
+                matchBuffer = new int[collector.getMatchBufferSize()];
+                if (depth < splitDepth && !SimilarProductsCollector.isBaseProduct(resource)) {
+                    for (Iterator<Resource> iterator = resource.listChildren(); iterator.hasNext();) {
+                        Resource child = iterator.next();
+                        if (SimilarProductsCollector.isBaseProduct(child)) {
+                            visit(child, pageManager);
+                        } else {
+                            subtasks.add(new WalkTask(collector, candidates, child.getPath(), depth + 1));
+                        }
+                    }
+                } else {
+                    walk(resource, pageManager);
+                }
+            } finally {
+                resolver.close();
+            }
+            invokeAll(subtasks);
+        }
+
+        private void walk(Resource resource, PageManager pageManager) {
+            if (SimilarProductsCollector.isBaseProduct(resource)) {
+                visit(resource, pageManager);
+            } else {
+                for (Iterator<Resource> iterator = resource.listChildren(); iterator.hasNext();) {
+                    walk(iterator.next(), pageManager);
+                }
+            }
+        }
+
+        /**
+         * Same checks as {@link SimilarProductsCollector#walk(Resource)}.
+         */
+        private void visit(Resource resource, PageManager pageManager) {
+            Product product = resource.adaptTo(Product.class);
+            if (product == null || collector.getExclusionSKUs().contains(product.getSKU())) {
+                return;
+            }
+            Page page = pageManager.getContainingPage(resource);
+            if (page == null || page.getPath().contains("activities")) {
+                return;
+            }
+            String[] productTags = product.getProperty("cq:tags", String[].class);
+            if (productTags == null || productTags.length == 0) {
+                return;
+            }
+            int rank = collector.match(collector.getTagDictionary().intern(productTags), matchBuffer);
+            if (rank > 0) {
+                merge(new SimilarProductsCollector.Candidate(resource.getPath(), product.getSKU(), null, rank,
+                        Arrays.copyOf(matchBuffer, rank)));
+            }
+        }
+
+        /**
+         * Keep the best ranked candidate per SKU.
+         */
+        private void merge(SimilarProductsCollector.Candidate candidate) {
+            while (true) {
+                SimilarProductsCollector.Candidate existing = candidates.putIfAbsent(candidate.sku, candidate);
+                if (existing == null || SimilarProductsCollector.RANKING.compare(candidate, existing) >= 0
+                        || candidates.replace(candidate.sku, existing, candidate)) {
+                    return;
+                }
+            }
+        }
+    }
+}
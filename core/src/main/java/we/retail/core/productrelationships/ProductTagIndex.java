@@ -0,0 +1,591 @@
+package we.retail.core.productrelationships;
+
+
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.common.AbstractJcrProduct;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import we.retail.core.util.WeRetailHelper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>ProductTagIndex</code> keeps an inverted index from tag to base product for each products root
+ * (such as <code>/content/we-retail/language-masters/en/products</code>).  It allows the relationship
+ * providers to look up the products sharing a tag with the context products in time proportional to
+ * the number of matches, rather than walking the whole products tree on every request.
+ *
+ * The index of a given root is built from a service resource resolver the first time it is queried.
+ * Products on "activities" pages and products without tags are never indexed.
+ *
+ * The index is kept current one product at a time by observing the changes below the indexed roots and
+ * below the product data the indexed products refer to (their tags are read from there), and is rebuilt as
+ * a whole after a catalog rollout (see {@link #scheduleRebuild()}).
+ */
+@Component
+@Service({ ProductTagIndex.class, ResourceChangeListener.class })
+@Properties(value = {
+        @Property(name = ResourceChangeListener.PATHS, value = { "/content/we-retail", ProductTagIndex.PRODUCT_DATA_ROOT }),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" })
+})
+public class ProductTagIndex implements ResourceChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ProductTagIndex.class);
+
+    /**
+     * Sub-service used to read the products trees.
+     */
+    static final String SUBSERVICE = "products";
+
+    /**
+     * Root of the product data referenced by the products on the we.Retail pages.
+     */
+    static final String PRODUCT_DATA_ROOT = "/etc/commerce/products/we-retail";
+
+    private static final String PN_PRODUCT_DATA = "productData";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    /**
+     * Delay after which a scheduled rebuild runs.  A catalog rollout calls the rollout hooks once per
+     * product, so the rebuild is postponed until the rollout has gone quiet.
+     */
+    private static final long REBUILD_DELAY_SECONDS = 10;
+
+    /**
+     * Time in seconds deactivation waits for a running rebuild to finish.
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final Map<String, RootIndex> roots = new ConcurrentHashMap<String, RootIndex>();
+    private final AtomicLong generation = new AtomicLong();
+    private final TagDictionary tagDictionary = new TagDictionary();
+
+    private volatile ScheduledExecutorService rebuildExecutor;
+    private ScheduledFuture<?> pendingRebuild;
+
+    /**
+     * The root being rebuilt, if any, and the scopes updated below it since its rebuild started; they are
+     * replayed on the rebuilt index before it replaces the current one.  Guarded by <code>this</code>.
+     */
+    private String rebuildingRoot;
+    private final Set<String> rebuildScopes = new TreeSet<String>();
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate() {
+        rebuildExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "we.Retail product tag index rebuild");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = rebuildExecutor;
+            rebuildExecutor = null;
+            if (pendingRebuild != null) {
+                pendingRebuild.cancel(false);
+                pendingRebuild = null;
+            }
+        }
+        // a running rebuild is not interrupted, as that would close the repository session it is using; it
+        // stops before the next root instead
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Product tag index rebuild did not stop within {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        roots.clear();
+    }
+
+    /**
+     * Return the indexed products below <code>rootPath</code> which carry at least one of the given tags,
+     * leaving out the products whose SKU is contained in <code>exclusionSKUs</code>.
+     *
+     * @return the matching products, or <code>null</code> if the index for the given root is not available
+     */
+    public List<IndexedProduct> getCandidates(String rootPath, Collection<String> tags, Collection<String> exclusionSKUs) {
+        RootIndex index = getRootIndex(rootPath);
+        if (index == null) {
+            return null;
+        }
+
+        Set<IndexedProduct> candidates = new LinkedHashSet<IndexedProduct>();
+        for (String tag : tags) {
+            Set<IndexedProduct> products = index.productsByTag.get(tag);
+            if (products != null) {
+                candidates.addAll(products);
+            }
+        }
+
+        List<IndexedProduct> result = new ArrayList<IndexedProduct>(candidates.size());
+        for (IndexedProduct product : candidates) {
+            if (!exclusionSKUs.contains(product.getSKU())) {
+                result.add(product);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the dictionary the tags of the indexed products are interned in.
+     */
+    public TagDictionary getTagDictionary() {
+        return tagDictionary;
+    }
+
+    /**
+     * Return a counter which is incremented each time the indexed content changes.  Results derived from
+     * the index remain valid for as long as the generation stays the same.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Drop the index of all roots; they will be rebuilt on their next use.
+     */
+    public void clear() {
+        roots.clear();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Schedule a full rebuild of all indexed roots.  Calls made while a rebuild is pending postpone it,
+     * so that a catalog rollout results in a single rebuild once its last product has been rolled out.
+     */
+    public synchronized void scheduleRebuild() {
+        if (rebuildExecutor == null) {
+            return;
+        }
+        if (pendingRebuild != null) {
+            pendingRebuild.cancel(false);
+        }
+        pendingRebuild = rebuildExecutor.schedule(new Runnable() {
+            public void run() {
+                rebuild();
+            }
+        }, REBUILD_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void rebuild() {
+        ResourceResolver resolver = null;
+        try {
+            resolver = getServiceResolver();
+            PageManager pageManager = resolver.adaptTo(PageManager.class);
+            for (String rootPath : new ArrayList<String>(roots.keySet())) {
+                if (rebuildExecutor == null) {
+                    return;
+                }
+                synchronized (this) {
+                    rebuildingRoot = rootPath;
+                    rebuildScopes.clear();
+                }
+                // the root is built without holding the lock, so that updates and queries are not held up, from
+                // a view of the repository at least as recent as the changes recorded from now on
+                resolver.refresh();
+                RootIndex index = buildRootIndex(resolver, rootPath);
+                synchronized (this) {
+                    rebuildingRoot = null;
+                    if (index != null) {
+                        // the changes which arrived while building were only applied to the current index
+                        resolver.refresh();
+                        for (String scope : rebuildScopes) {
+                            reindex(index, scope, resolver, pageManager);
+                        }
+                        roots.put(rootPath, index);
+                    } else {
+                        roots.remove(rootPath);
+                    }
+                    rebuildScopes.clear();
+                    generation.incrementAndGet();
+                }
+            }
+        } catch (LoginException e) {
+            log.error("Cannot rebuild the product tag index", e);
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    /**
+     * Update the index for the products added, changed or removed below the indexed roots.  Only the
+     * smallest subtree containing each change is re-indexed: the enclosing base product if there is one,
+     * the changed resource otherwise.  A change to product data re-indexes the products referring to it.
+     */
+    public void onChange(List<ResourceChange> changes) {
+        Map<String, Set<String>> scopesByRoot = new HashMap<String, Set<String>>();
+        for (ResourceChange change : changes) {
+            String path = change.getPath();
+            if (WeRetailHelper.isAncestorOrSelf(PRODUCT_DATA_ROOT, path)) {
+                for (Map.Entry<String, RootIndex> root : roots.entrySet()) {
+                    for (String productPath : root.getValue().getProductsUsingData(path)) {
+                        addScope(scopesByRoot, root.getKey(), productPath);
+                    }
+                }
+                continue;
+            }
+            String rootPath = getIndexedRoot(path);
+            if (rootPath != null) {
+                addScope(scopesByRoot, rootPath, path);
+            }
+        }
+        if (scopesByRoot.isEmpty()) {
+            return;
+        }
+
+        ResourceResolver resolver = null;
+        try {
+            resolver = getServiceResolver();
+            PageManager pageManager = resolver.adaptTo(PageManager.class);
+            for (Map.Entry<String, Set<String>> entry : scopesByRoot.entrySet()) {
+                Set<String> scopes = new TreeSet<String>();
+                for (String path : entry.getValue()) {
+                    scopes.add(getScope(resolver, entry.getKey(), path));
+                }
+                String previous = null;
+                for (String scope : scopes) {
+                    // scopes are sorted, so a scope nested in the previous one has already been covered
+                    if (previous != null && WeRetailHelper.isAncestorOrSelf(previous, scope)) {
+                        continue;
+                    }
+                    update(entry.getKey(), scope, resolver, pageManager);
+                    previous = scope;
+                }
+            }
+        } catch (LoginException e) {
+            log.error("Cannot update the product tag index", e);
+            clear();
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    private static void addScope(Map<String, Set<String>> scopesByRoot, String rootPath, String path) {
+        Set<String> scopes = scopesByRoot.get(rootPath);
+        if (scopes == null) {
+            scopes = new TreeSet<String>();
+            scopesByRoot.put(rootPath, scopes);
+        }
+        scopes.add(path);
+    }
+
+    private String getIndexedRoot(String path) {
+        for (String rootPath : roots.keySet()) {
+            if (WeRetailHelper.isAncestorOrSelf(rootPath, path)) {
+                return rootPath;
+            }
+        }
+        return null;
+    }
+
+    private String getScope(ResourceResolver resolver, String rootPath, String path) {
+        String scope = path;
+        for (String current = path; current != null && WeRetailHelper.isAncestorOrSelf(rootPath, current);
+             current = parentOf(current)) {
+            Resource resource = resolver.getResource(current);
+            if (resource != null && AbstractJcrProduct.isABaseProduct(resource)) {
+                scope = current;
+                break;
+            }
+        }
+        return scope;
+    }
+
+    private synchronized void update(String rootPath, String scope, ResourceResolver resolver, PageManager pageManager) {
+        if (rootPath.equals(rebuildingRoot)) {
+            rebuildScopes.add(scope);
+        }
+        RootIndex index = roots.get(rootPath);
+        if (index == null) {
+            return;
+        }
+        reindex(index, scope, resolver, pageManager);
+        generation.incrementAndGet();
+        log.debug("Re-indexed products below {}", scope);
+    }
+
+    /**
+     * Re-index the products of <code>index</code> at or below <code>scope</code>.
+     */
+    private void reindex(RootIndex index, String scope, ResourceResolver resolver, PageManager pageManager) {
+        index.removeAll(scope);
+        Resource resource = resolver.getResource(scope);
+        if (resource != null) {
+            index(resource, pageManager, index);
+        }
+    }
+
+    private static String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index > 0 ? path.substring(0, index) : null;
+    }
+
+    private RootIndex getRootIndex(String rootPath) {
+        RootIndex index = roots.get(rootPath);
+        if (index == null) {
+            synchronized (this) {
+                index = roots.get(rootPath);
+                if (index == null) {
+                    index = buildRootIndex(rootPath);
+                    if (index != null) {
+                        roots.put(rootPath, index);
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    private RootIndex buildRootIndex(String rootPath) {
+        ResourceResolver resolver = null;
+        try {
+            resolver = getServiceResolver();
+            return buildRootIndex(resolver, rootPath);
+        } catch (LoginException e) {
+            log.error("Cannot index products below " + rootPath, e);
+            return null;
+        } finally {
+            if (resolver != null) {
+                resolver.close();
+            }
+        }
+    }
+
+    private RootIndex buildRootIndex(ResourceResolver resolver, String rootPath) {
+        Resource root = resolver.getResource(rootPath);
+        if (root == null) {
+            log.warn("Cannot index products: {} not found", rootPath);
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        RootIndex index = new RootIndex();
+        index(root, resolver.adaptTo(PageManager.class), index);
+        log.info("Indexed {} products below {} in {}ms",
+                new Object[] { index.productsByPath.size(), rootPath, System.currentTimeMillis() - start });
+        return index;
+    }
+
+    private void index(Resource resource, PageManager pageManager, RootIndex index) {
+        if (AbstractJcrProduct.isABaseProduct(resource)) {
+            // remember the product data of every base product, so that tagging an untagged product is noticed
+            String dataPath = resource.getValueMap().get(PN_PRODUCT_DATA, String.class);
+            if (dataPath != null) {
+                index.addDataPath(resource.getPath(), dataPath);
+            }
+            IndexedProduct product = createIndexedProduct(resource, pageManager);
+            if (product != null) {
+                index.add(product);
+            }
+        } else {
+            for (Iterator<Resource> iterator = resource.listChildren(); iterator.hasNext();) {
+                index(iterator.next(), pageManager, index);
+            }
+        }
+    }
+
+    private IndexedProduct createIndexedProduct(Resource resource, PageManager pageManager) {
+        Product product = resource.adaptTo(Product.class);
+        if (product == null) {
+            return null;
+        }
+        Page page = pageManager.getContainingPage(resource);
+        if (page == null || page.getPath().contains("activities")) {
+            return null;
+        }
+        String[] tags = product.getProperty("cq:tags", String[].class);
+        if (tags == null || tags.length == 0) {
+            return null;
+        }
+        return new IndexedProduct(resource.getPath(), product.getSKU(), tags, tagDictionary.intern(tags));
+    }
+
+    private ResourceResolver getServiceResolver() throws LoginException {
+        return WeRetailHelper.getServiceResourceResolver(resolverFactory, SUBSERVICE);
+    }
+
+    /**
+     * The tag postings of a single products root.  The maps keyed by path are sorted, so that the entries at
+     * or below a path are found without scanning the whole root (see {@link #subtree(NavigableMap, String)}).
+     * They are only changed while holding the lock of the index, but read concurrently.
+     */
+    private static class RootIndex {
+        final NavigableMap<String, IndexedProduct> productsByPath = new ConcurrentSkipListMap<String, IndexedProduct>();
+        final Map<String, Set<IndexedProduct>> productsByTag = new ConcurrentHashMap<String, Set<IndexedProduct>>();
+        // the product data of the base products below the root, tagged or not, by product path, and back
+        final NavigableMap<String, String> dataPathsByProduct = new ConcurrentSkipListMap<String, String>();
+        final NavigableMap<String, Set<String>> productsByDataPath = new ConcurrentSkipListMap<String, Set<String>>();
+
+        void add(IndexedProduct product) {
+            productsByPath.put(product.getPath(), product);
+            for (String tag : product.getTags()) {
+                Set<IndexedProduct> products = productsByTag.get(tag);
+                if (products == null) {
+                    products = Collections.newSetFromMap(new ConcurrentHashMap<IndexedProduct, Boolean>());
+                    productsByTag.put(tag, products);
+                }
+                products.add(product);
+            }
+        }
+
+        void addDataPath(String productPath, String dataPath) {
+            dataPathsByProduct.put(productPath, dataPath);
+            Set<String> products = productsByDataPath.get(dataPath);
+            if (products == null) {
+                products = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                productsByDataPath.put(dataPath, products);
+            }
+            products.add(productPath);
+        }
+
+        /**
+         * Remove the products at or below <code>scope</code>.
+         */
+        void removeAll(String scope) {
+            IndexedProduct product = productsByPath.remove(scope);
+            if (product != null) {
+                removeTags(product);
+            }
+            NavigableMap<String, IndexedProduct> products = subtree(productsByPath, scope);
+            for (IndexedProduct descendant : products.values()) {
+                removeTags(descendant);
+            }
+            products.clear();
+
+            removeDataPath(scope, dataPathsByProduct.remove(scope));
+            NavigableMap<String, String> dataPaths = subtree(dataPathsByProduct, scope);
+            for (Map.Entry<String, String> entry : dataPaths.entrySet()) {
+                removeDataPath(entry.getKey(), entry.getValue());
+            }
+            dataPaths.clear();
+        }
+
+        /**
+         * Return the paths of the products whose product data is at, above or below <code>path</code>.
+         */
+        Set<String> getProductsUsingData(String path) {
+            Set<String> result = new HashSet<String>();
+            for (String current = path; current != null; current = parentOf(current)) {
+                Set<String> products = productsByDataPath.get(current);
+                if (products != null) {
+                    result.addAll(products);
+                }
+            }
+            for (Set<String> products : subtree(productsByDataPath, path).values()) {
+                result.addAll(products);
+            }
+            return result;
+        }
+
+        private void removeTags(IndexedProduct product) {
+            for (String tag : product.getTags()) {
+                Set<IndexedProduct> products = productsByTag.get(tag);
+                if (products != null) {
+                    products.remove(product);
+                }
+            }
+        }
+
+        private void removeDataPath(String productPath, String dataPath) {
+            Set<String> products = dataPath != null ? productsByDataPath.get(dataPath) : null;
+            if (products != null) {
+                products.remove(productPath);
+                if (products.isEmpty()) {
+                    productsByDataPath.remove(dataPath);
+                }
+            }
+        }
+
+        /**
+         * Return the view of the entries of <code>map</code> strictly below <code>path</code>: their keys start
+         * with <code>path + "/"</code>, so they sort between it and <code>path + "0"</code> ('0' follows '/').
+         */
+        private static <V> NavigableMap<String, V> subtree(NavigableMap<String, V> map, String path) {
+            return map.subMap(path + "/", true, path + "0", false);
+        }
+    }
+
+    /**
+     * An indexed base product: the path of its product resource, its SKU and its tags, both as strings and
+     * as sorted numbers from the {@link TagDictionary}.
+     */
+    public static final class IndexedProduct {
+        private final String path;
+        private final String sku;
+        private final String[] tags;
+        private final int[] tagIds;
+
+        IndexedProduct(String path, String sku, String[] tags, int[] tagIds) {
+            this.path = path;
+            this.sku = sku;
+            this.tags = tags;
+            this.tagIds = tagIds;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getSKU() {
+            return sku;
+        }
+
+        public String[] getTags() {
+            return tags;
+        }
+
+        public int[] getTagIds() {
+            return tagIds;
+        }
+    }
+}
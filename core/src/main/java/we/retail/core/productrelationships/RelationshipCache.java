@@ -0,0 +1,123 @@
+package we.retail.core.productrelationships;
+
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of ranked relationships.  Entries expire after a fixed time-to-live,
+ * and are discarded as soon as the {@link ProductTagIndex} generation they were computed from is outdated.
+ *
+ * Only the visitor-independent part of a relationship is cached (see {@link CachedRelationship}); the price
+ * is looked up again for each request.
+ */
+class RelationshipCache {
+
+    private final int maxSize;
+    private final long ttl;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize the maximum number of cached entries
+     * @param ttl     the time-to-live of an entry, in milliseconds
+     */
+    RelationshipCache(final int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Return the relationships cached for <code>key</code>, or <code>null</code> if there are none, or they
+     * have expired or were computed from another index generation.
+     */
+    List<CachedRelationship> get(String key, long generation) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && (entry.generation != generation || entry.expires < System.currentTimeMillis())) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.relationships;
+    }
+
+    void put(String key, long generation, List<CachedRelationship> relationships) {
+        if (maxSize <= 0) {
+            return;
+        }
+        Entry entry = new Entry(generation, System.currentTimeMillis() + ttl,
+                Collections.unmodifiableList(relationships));
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static class Entry {
+        final long generation;
+        final long expires;
+        final List<CachedRelationship> relationships;
+
+        Entry(long generation, long expires, List<CachedRelationship> relationships) {
+            this.generation = generation;
+            this.expires = expires;
+            this.relationships = relationships;
+        }
+    }
+
+    /**
+     * The skeleton of a ranked relationship: the path of the related product, its rank and the tags it matched.
+     */
+    static final class CachedRelationship {
+        final String path;
+        final int rank;
+        final String matchedTags;
+
+        CachedRelationship(String path, int rank, String matchedTags) {
+            this.path = path;
+            this.rank = rank;
+            this.matchedTags = matchedTags;
+        }
+    }
+}
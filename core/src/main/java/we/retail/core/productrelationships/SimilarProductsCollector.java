@@ -1,6 +1,7 @@
 package we.retail.core.productrelationships;
 
 
+import com.adobe.cq.commerce.api.CommerceConstants;
 import com.adobe.cq.commerce.api.CommerceException;
 import com.adobe.cq.commerce.api.CommerceSession;
 import com.adobe.cq.commerce.api.Product;
@@ -8,22 +9,26 @@ import com.adobe.cq.commerce.api.ProductRelationship;
 import com.adobe.cq.commerce.common.AbstractJcrProduct;
 import com.adobe.cq.commerce.common.DefaultProductRelationship;
 import com.day.cq.wcm.api.PageManager;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * A sample RelatedProductsCollector which matches based on tags.
+ *
+ * Tags are interned in a {@link TagDictionary} and matched as sorted <code>int[]</code> with the
+ * {@link TagMatcher}, so that scoring a candidate does not allocate.
  */
 public class SimilarProductsCollector {
     /**
@@ -42,26 +47,56 @@ public class SimilarProductsCollector {
     protected List<String> exclusionSKUs;
 
     /**
-     * A map from SKU to relationship.  This allows us to recommend a particular product
+     * The context tags as sorted tag numbers, one set per context product.
+     */
+    protected TagDictionary tagDictionary;
+    protected int[][] matchTagIds;
+
+    /**
+     * Receives the matched tag numbers of the candidate being scored.
+     */
+    private int[] matchBuffer;
+
+    /**
+     * The maximum number of relationships to return; 0 for no limit.
+     */
+    protected int maxResults;
+
+    /**
+     * A map from SKU to the best ranked candidate.  This allows us to recommend a particular product
      * only once even if multiple presentations are found for it.
      */
-    protected Map<String, ProductRelationship> relationships;
+    protected Map<String, Candidate> candidates;
 
 
     SimilarProductsCollector(ResourceResolver resolver, CommerceSession session, String relationshipType, String relationshipTitle,
                              List<Product> contextProducts) {
+        this(resolver, session, relationshipType, relationshipTitle, contextProducts, 0, null);
+    }
+
+    SimilarProductsCollector(ResourceResolver resolver, CommerceSession session, String relationshipType, String relationshipTitle,
+                             List<Product> contextProducts, int maxResults, TagDictionary tagDictionary) {
         this.resolver = resolver;
         this.pageManager = resolver.adaptTo(PageManager.class);
         this.commerceSession = session;
 
         this.relationshipType = relationshipType;
         this.relationshipTitle = relationshipTitle;
+        this.maxResults = maxResults;
+        this.tagDictionary = tagDictionary != null ? tagDictionary : new TagDictionary();
 
         matchTagSets = new ArrayList<List<String>>();
         exclusionSKUs = new ArrayList<String>();
+        matchTagIds = new int[contextProducts.size()][];
+        int maxMatchTags = 0;
         for (Product product : contextProducts) {
+            String[] tags = product.getProperty("cq:tags", String[].class);
             List<String> matchTags = new ArrayList<String>();
-            Collections.addAll(matchTags, product.getProperty("cq:tags", String[].class));
+            if (tags != null) {
+                Collections.addAll(matchTags, tags);
+            }
+            matchTagIds[matchTagSets.size()] = this.tagDictionary.intern(tags);
+            maxMatchTags = Math.max(maxMatchTags, matchTagIds[matchTagSets.size()].length);
             matchTagSets.add(matchTags);
 
             try {
@@ -70,42 +105,54 @@ public class SimilarProductsCollector {
                 exclusionSKUs.add(product.getSKU());    // not perfect, but better than nothing
             }
         }
+        matchBuffer = new int[maxMatchTags];
+
+        this.candidates = new HashMap<String, Candidate>();
+    }
 
-        this.relationships = new HashMap<String, ProductRelationship>();
+    /**
+     * Add a product candidate whose matched tag numbers are the first <code>rank</code> entries of the match
+     * buffer.  The price and the other relationship metadata are only computed for the candidates which make
+     * it into the result (see {@link #getRelationships()}).
+     */
+    protected void addCandidate(String path, String sku, Product product, int rank) {
+        Candidate existing = candidates.get(sku);
+        if (existing == null || compare(rank, sku, path, existing) < 0) {
+            candidates.put(sku, new Candidate(path, sku, product, rank, Arrays.copyOf(matchBuffer, rank)));
+        }
     }
 
     /**
-     * Add a product relationship.  Include 'price', 'matched-tags' and 'rank' as extra metadata.
+     * Add a candidate found outside of this collector (see {@link ParallelProductWalker}), keeping the best
+     * ranked candidate per SKU just like {@link #addCandidate(String, String, Product, int)}.
      */
-    protected void addProduct(Product product, List<String> matchedTags) throws CommerceException {
-        int rank = matchedTags.size();
-        ProductRelationship existing = relationships.get(product.getSKU());
-        if (existing != null && existing.getMetadata().get("rank", 0) > rank) {
-            return;
+    protected void addCandidate(Candidate candidate) {
+        Candidate existing = candidates.get(candidate.sku);
+        if (existing == null || RANKING.compare(candidate, existing) < 0) {
+            candidates.put(candidate.sku, candidate);
         }
+    }
 
+    /**
+     * Create a product relationship.  Include 'price', 'matched-tags' and 'rank' as extra metadata.
+     */
+    protected ProductRelationship createRelationship(Product product, int rank, String matchedTags) throws CommerceException {
         ProductRelationship relationship = new DefaultProductRelationship(relationshipType, relationshipTitle, product);
         if (commerceSession != null) {
             relationship.getMetadata().put("price", commerceSession.getProductPrice(product));
         }
-        String serializedTags = "";
-        for (String tag : matchedTags) {
-            if (serializedTags.length() > 0) {
-                serializedTags += ",";
-            }
-            serializedTags += tag;
-        }
-        relationship.getMetadata().put("matched-tags", serializedTags);
+        relationship.getMetadata().put("matched-tags", matchedTags);
         relationship.getMetadata().put("rank", rank);
-        relationships.put(product.getSKU(), relationship);
+        return relationship;
     }
 
     public void walk(Resource resource) throws CommerceException {
         //
         // NB: this is a demonstration implementation which would not scale well in production cases.
+        // Prefer collect() with the candidates from the ProductTagIndex where possible.
         //
 
-        if (AbstractJcrProduct.isABaseProduct(resource)) {
+        if (isBaseProduct(resource)) {
             Product product = resource.adaptTo(Product.class);
             if (product == null || exclusionSKUs.contains(product.getSKU())) {
                 return;
@@ -117,16 +164,9 @@ public class SimilarProductsCollector {
             if (productTags == null || productTags.length == 0) {
                 return;
             }
-            for (List<String> matchTags : matchTagSets) {
-                List<String> productTagList = new ArrayList<String>();
-                Collections.addAll(productTagList, productTags);
-
-                productTagList.retainAll(matchTags);
-
-                if (productTagList.size() > 0) {
-                    addProduct(product, productTagList);
-                    break;
-                }
+            int rank = match(tagDictionary.intern(productTags));
+            if (rank > 0) {
+                addCandidate(product.getPath(), product.getSKU(), product, rank);
             }
         } else {
             for (Iterator<Resource> iterator = resource.listChildren(); iterator.hasNext();) {
@@ -136,17 +176,193 @@ public class SimilarProductsCollector {
     }
 
     /**
-     * Return the collected relationships, sorted by 'rank'.
+     * Tell if <code>resource</code> is a base product, as {@link AbstractJcrProduct#isABaseProduct(Resource)}
+     * does, without loading the JCR product implementation (and its dependencies) to do so.
+     */
+    static boolean isBaseProduct(Resource resource) {
+        return "product".equals(resource.getValueMap().get(CommerceConstants.PN_COMMERCE_TYPE, String.class));
+    }
+
+    /**
+     * Match the candidates returned by the {@link ProductTagIndex}.  The index has already left out the
+     * "activities" pages and the context SKUs, so only the tag matching remains to be done.
+     */
+    public void collect(List<ProductTagIndex.IndexedProduct> indexedProducts) {
+        for (ProductTagIndex.IndexedProduct indexedProduct : indexedProducts) {
+            if (exclusionSKUs.contains(indexedProduct.getSKU())) {
+                continue;
+            }
+            int rank = match(indexedProduct.getTagIds());
+            if (rank > 0) {
+                // the product itself is only resolved if the candidate makes it into the result
+                addCandidate(indexedProduct.getPath(), indexedProduct.getSKU(), null, rank);
+            }
+        }
+    }
+
+    /**
+     * Match the sorted tag numbers of a product against all context products in one pass, and keep the
+     * context product sharing the most tags with it.
+     *
+     * @return the number of matched tags; the matched tag numbers are left in the match buffer
+     */
+    protected int match(int[] productTagIds) {
+        return match(productTagIds, matchBuffer);
+    }
+
+    /**
+     * Same as {@link #match(int[])}, leaving the matched tag numbers in <code>buffer</code> (which must be
+     * at least {@link #getMatchBufferSize()} long).  This variant may be called concurrently.
      */
-    public List<ProductRelationship> getRelationships() {
-        List<ProductRelationship> relationshipList = new ArrayList<ProductRelationship>(relationships.values());
-        Collections.sort(relationshipList, new Comparator<ProductRelationship>() {
-            public int compare(ProductRelationship a, ProductRelationship b) {
-                return b.getMetadata().get("rank", Integer.class).compareTo(a.getMetadata().get("rank", Integer.class));
+    int match(int[] productTagIds, int[] buffer) {
+        if (matchTagIds.length == 1) {
+            return TagMatcher.score(productTagIds, matchTagIds[0], buffer);
+        }
+
+        // count only, then collect the matched tags of the best context product
+        int best = -1;
+        int bestRank = 0;
+        for (int i = 0; i < matchTagIds.length; i++) {
+            int rank = TagMatcher.score(productTagIds, matchTagIds[i], null);
+            if (rank > bestRank) {
+                best = i;
+                bestRank = rank;
             }
-        });
+        }
+        return best < 0 ? 0 : TagMatcher.score(productTagIds, matchTagIds[best], buffer);
+    }
+
+    int getMatchBufferSize() {
+        return matchBuffer.length;
+    }
+
+    TagDictionary getTagDictionary() {
+        return tagDictionary;
+    }
+
+    /**
+     * Return the union of the tags of all context products.
+     */
+    public Set<String> getMatchTags() {
+        Set<String> tags = new LinkedHashSet<String>();
+        for (List<String> matchTags : matchTagSets) {
+            tags.addAll(matchTags);
+        }
+        return tags;
+    }
+
+    public List<String> getExclusionSKUs() {
+        return exclusionSKUs;
+    }
+
+    /**
+     * Rebuild ranked relationships from their cached skeletons, looking up the current price of each product.
+     * Products which no longer exist are skipped.
+     */
+    List<ProductRelationship> restore(List<RelationshipCache.CachedRelationship> cachedRelationships)
+            throws CommerceException {
+        List<ProductRelationship> relationshipList = new ArrayList<ProductRelationship>(cachedRelationships.size());
+        for (RelationshipCache.CachedRelationship cached : cachedRelationships) {
+            Resource resource = resolver.getResource(cached.path);
+            Product product = resource != null ? resource.adaptTo(Product.class) : null;
+            if (product != null) {
+                relationshipList.add(createRelationship(product, cached.rank, cached.matchedTags));
+            }
+        }
         return relationshipList;
     }
-}
 
+    /**
+     * Return the visitor-independent skeletons of the given ranked relationships, for caching.
+     */
+    static List<RelationshipCache.CachedRelationship> toCached(List<ProductRelationship> relationshipList) {
+        List<RelationshipCache.CachedRelationship> cachedRelationships =
+                new ArrayList<RelationshipCache.CachedRelationship>(relationshipList.size());
+        for (ProductRelationship relationship : relationshipList) {
+            cachedRelationships.add(new RelationshipCache.CachedRelationship(relationship.getProduct().getPath(),
+                    relationship.getMetadata().get("rank", 0), relationship.getMetadata().get("matched-tags", "")));
+        }
+        return cachedRelationships;
+    }
 
+    /**
+     * Return the collected relationships, sorted by 'rank'.  When a maximum number of results is set, the
+     * best candidates are selected with a bounded heap, and only those are resolved and priced.
+     */
+    public List<ProductRelationship> getRelationships() throws CommerceException {
+        List<Candidate> ranked;
+        if (maxResults > 0 && candidates.size() > maxResults) {
+            // the heap head is the worst of the best candidates found so far
+            PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(maxResults + 1, Collections.reverseOrder(RANKING));
+            for (Candidate candidate : candidates.values()) {
+                if (heap.size() < maxResults) {
+                    heap.add(candidate);
+                } else if (RANKING.compare(candidate, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(candidate);
+                }
+            }
+            ranked = new ArrayList<Candidate>(heap);
+        } else {
+            ranked = new ArrayList<Candidate>(candidates.values());
+        }
+        Collections.sort(ranked, RANKING);
+
+        List<ProductRelationship> relationshipList = new ArrayList<ProductRelationship>(ranked.size());
+        for (Candidate candidate : ranked) {
+            Product product = candidate.getProduct(resolver);
+            if (product != null) {
+                relationshipList.add(createRelationship(product, candidate.rank,
+                        tagDictionary.join(candidate.matchedTagIds, candidate.rank)));
+            }
+        }
+        return relationshipList;
+    }
+
+    /**
+     * Orders candidates on descending rank.  Candidates of equal rank are ordered on SKU, then path, so that
+     * the result does not depend on the order in which the candidates were found.
+     */
+    protected static final Comparator<Candidate> RANKING = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return SimilarProductsCollector.compare(a.rank, a.sku, a.path, b);
+        }
+    };
+
+    private static int compare(int rank, String sku, String path, Candidate other) {
+        if (rank != other.rank) {
+            return rank > other.rank ? -1 : 1;
+        }
+        int result = sku.compareTo(other.sku);
+        return result != 0 ? result : path.compareTo(other.path);
+    }
+
+    /**
+     * A matched product, together with its rank and the numbers of the tags it matched.
+     */
+    protected static class Candidate {
+        final String path;
+        final String sku;
+        final int rank;
+        final int[] matchedTagIds;
+        private Product product;
+
+        Candidate(String path, String sku, Product product, int rank, int[] matchedTagIds) {
+            this.path = path;
+            this.sku = sku;
+            this.product = product;
+            this.rank = rank;
+            this.matchedTagIds = matchedTagIds;
+        }
+
+        Product getProduct(ResourceResolver resolver) {
+            if (product == null) {
+                Resource resource = resolver.getResource(path);
+                if (resource != null) {
+                    product = resource.adaptTo(Product.class);
+                }
+            }
+            return product;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package we.retail.core.productrelationships;
+
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.CommerceSession;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import com.adobe.cq.commerce.api.ProductRelationshipsProvider;
+import com.day.cq.wcm.api.Page;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>SimilarToCartRelationshipsProvider</code> provides a list of relationships to products having at
+ * least one tag in common with the products in the cart.  Each candidate is scored against all cart
+ * entries in a single pass, and ranked on the number of tags it shares with the cart entry it matches best.
+ * Products which are already in the cart are never recommended.
+ */
+@Component(metatype = true,
+        label = "we.Retail Similar-to-Cart Recommendations Provider",
+        description = "Example ProductRelationshipsProvider which recommends products similar to the products in the cart")
+@Service
+@Properties(value = {
+        @Property(name = "service.description", value = "Example ProductRelationshipsProvider which recommends products similar to the products in the cart"),
+        @Property(name = ProductRelationshipsProvider.RELATIONSHIP_TYPE_PN, value = SimilarToCartRelationshipsProvider.RELATIONSHIP_TYPE, propertyPrivate = true)
+})
+@Reference(name = "productTagIndex", referenceInterface = ProductTagIndex.class,
+        bind = "bindProductTagIndex", unbind = "unbindProductTagIndex")
+public class SimilarToCartRelationshipsProvider extends AbstractSimilarProductsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(SimilarToCartRelationshipsProvider.class);
+
+    public static final String RELATIONSHIP_TYPE = "info.we-retail.similar-to-cart";
+    public static final String RELATIONSHIP_TITLE = "Similar to cart";
+
+    @Property(boolValue = true, label = "Enable", description = "Provide recommendations")
+    public final static String ENABLED = RELATIONSHIP_TYPE + ENABLED_SUFFIX;
+
+    @Property(intValue = 0, label = "Maximum results", description = "Maximum number of recommendations returned (0 for no limit)")
+    public final static String MAX_RESULTS = RELATIONSHIP_TYPE + MAX_RESULTS_SUFFIX;
+
+    @Property(intValue = 500, label = "Cache size", description = "Maximum number of carts whose recommendations are cached (0 disables the cache)")
+    public final static String CACHE_SIZE = RELATIONSHIP_TYPE + CACHE_SIZE_SUFFIX;
+
+    @Property(intValue = 600, label = "Cache TTL", description = "Time in seconds after which cached recommendations expire")
+    public final static String CACHE_TTL = RELATIONSHIP_TYPE + CACHE_TTL_SUFFIX;
+
+    @Property(boolValue = false, label = "Parallel walk", description = "Walk the products tree in parallel when the tag index is not available")
+    public final static String PARALLEL_WALK = RELATIONSHIP_TYPE + PARALLEL_WALK_SUFFIX;
+
+    @Property(intValue = 4, label = "Walk parallelism", description = "Number of threads of the parallel walk")
+    public final static String WALK_PARALLELISM = RELATIONSHIP_TYPE + WALK_PARALLELISM_SUFFIX;
+
+    @SuppressWarnings ("unused")
+    @Activate
+    private void activate(ComponentContext context) throws IOException {
+        configure(context.getProperties());
+    }
+
+    @SuppressWarnings ("unused")
+    @Deactivate
+    private void deactivate() throws IOException {
+        release();
+    }
+
+    @Override
+    protected String getRelationshipType() {
+        return RELATIONSHIP_TYPE;
+    }
+
+    @Override
+    protected String getRelationshipTitle() {
+        return RELATIONSHIP_TITLE;
+    }
+
+    /**
+     * @return a list of products whose tags match the tags of products already in the cart
+     */
+    @Override
+    public List<ProductRelationship> getRelationships(SlingHttpServletRequest request, CommerceSession session, Page currentPage,
+                                                      Product currentProduct) throws CommerceException {
+        if (!enabled || session == null) {
+            return null;
+        }
+
+        //
+        // Don't provide relationships to non-we-retail pages:
+        //
+        if (!isWeRetailPage(currentPage)) {
+            return null;
+        }
+
+        //
+        // Add cart contents to context, once per base product (variants of the same product share its tags);
+        // the entries whose base product cannot be read are left out rather than failing the whole list:
+        //
+        List<Product> contextProducts = new ArrayList<Product>();
+        Set<String> baseProductPaths = new HashSet<String>();
+        for (CommerceSession.CartEntry entry : session.getCartEntries()) {
+            Product product;
+            Product baseProduct;
+            try {
+                product = entry.getProduct();
+                baseProduct = product != null ? product.getBaseProduct() : null;
+            } catch (CommerceException e) {
+                log.warn("Skipping a cart entry whose product cannot be read: {}", e.getMessage());
+                continue;
+            }
+            if (baseProduct != null && baseProductPaths.add(baseProduct.getPath())) {
+                contextProducts.add(product);
+            }
+        }
+        if (contextProducts.isEmpty()) {
+            return null;
+        }
+
+        return getSimilarProducts(request, session, contextProducts);
+    }
+}
@@ -1,41 +1,33 @@
 package we.retail.core.productrelationships;
 
 
-import com.adobe.cq.commerce.api.CommerceConstants;
 import com.adobe.cq.commerce.api.CommerceException;
 import com.adobe.cq.commerce.api.CommerceSession;
 import com.adobe.cq.commerce.api.Product;
 import com.adobe.cq.commerce.api.ProductRelationship;
 import com.adobe.cq.commerce.api.ProductRelationshipsProvider;
-import com.day.cq.commons.inherit.HierarchyNodeInheritanceValueMap;
-import com.day.cq.commons.inherit.InheritanceValueMap;
 import com.day.cq.wcm.api.Page;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentContext;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * <code>SimilarToCurrentRelatedProductsProvider</code> provides a list of relationships to products
  * having at least one tag in common with the current product.  The list is sorted on number of matched
  * tags.
  *
- * NB: this is an example relationship provider which trades off performance for simplicity.  A
- * production system would require a much more performant implementation.
+ * Candidates are looked up in the {@link ProductTagIndex}; the products tree is only walked when the
+ * index is not available.
  */
 @Component(metatype = true,
         label = "we.Retail Similar-to-Current Recommendations Provider",
@@ -45,36 +37,55 @@ import java.util.Map;
         @Property(name = "service.description", value = "Example ProductRelationshipsProvider which recommends products similar to the current product"),
         @Property(name = ProductRelationshipsProvider.RELATIONSHIP_TYPE_PN, value = SimilarToCurrentRelationshipsProvider.RELATIONSHIP_TYPE, propertyPrivate = true)
 })
-public class SimilarToCurrentRelationshipsProvider implements ProductRelationshipsProvider {
+@Reference(name = "productTagIndex", referenceInterface = ProductTagIndex.class,
+        bind = "bindProductTagIndex", unbind = "unbindProductTagIndex")
+public class SimilarToCurrentRelationshipsProvider extends AbstractSimilarProductsProvider {
 
     public static final String RELATIONSHIP_TYPE = "info.we-retail.similar-to-current";
     public static final String RELATIONSHIP_TITLE = "Similar to current";
 
-    private boolean enabled;
-
     @Property(boolValue = true, label = "Enable", description = "Provide recommendations")
-    public final static String ENABLED = RELATIONSHIP_TYPE + ".enabled";
+    public final static String ENABLED = RELATIONSHIP_TYPE + ENABLED_SUFFIX;
+
+    @Property(intValue = 0, label = "Maximum results", description = "Maximum number of recommendations returned (0 for no limit)")
+    public final static String MAX_RESULTS = RELATIONSHIP_TYPE + MAX_RESULTS_SUFFIX;
+
+    @Property(intValue = 500, label = "Cache size", description = "Maximum number of products whose recommendations are cached (0 disables the cache)")
+    public final static String CACHE_SIZE = RELATIONSHIP_TYPE + CACHE_SIZE_SUFFIX;
+
+    @Property(intValue = 600, label = "Cache TTL", description = "Time in seconds after which cached recommendations expire")
+    public final static String CACHE_TTL = RELATIONSHIP_TYPE + CACHE_TTL_SUFFIX;
+
+    @Property(boolValue = false, label = "Parallel walk", description = "Walk the products tree in parallel when the tag index is not available")
+    public final static String PARALLEL_WALK = RELATIONSHIP_TYPE + PARALLEL_WALK_SUFFIX;
+
+    @Property(intValue = 4, label = "Walk parallelism", description = "Number of threads of the parallel walk")
+    public final static String WALK_PARALLELISM = RELATIONSHIP_TYPE + WALK_PARALLELISM_SUFFIX;
 
     @SuppressWarnings ("unused")
     @Activate
     private void activate(ComponentContext context) throws IOException {
-        enabled = PropertiesUtil.toBoolean(context.getProperties().get(ENABLED), true);
+        configure(context.getProperties());
     }
 
     @SuppressWarnings ("unused")
     @Deactivate
     private void deactivate() throws IOException {
+        release();
     }
 
     @Override
-    public Map<String, String> getRelationshipTypes() {
-        Map<String, String> types = new HashMap<String, String>(0);
-        types.put(RELATIONSHIP_TYPE, RELATIONSHIP_TITLE);
-        return types;
+    protected String getRelationshipType() {
+        return RELATIONSHIP_TYPE;
+    }
+
+    @Override
+    protected String getRelationshipTitle() {
+        return RELATIONSHIP_TITLE;
     }
 
     /**
-     * @return a list of products whose tags match the tags of products already in the cart
+     * @return a list of products whose tags match the tags of the current product
      */
     @Override
     public List<ProductRelationship> getRelationships(SlingHttpServletRequest request, CommerceSession session, Page currentPage,
@@ -86,12 +97,8 @@ public class SimilarToCurrentRelationshipsProvider implements ProductRelationshi
         //
         // Don't provide relationships to non-we-retail pages:
         //
-        if (currentPage != null) {
-            InheritanceValueMap properties = new HierarchyNodeInheritanceValueMap(currentPage.getContentResource());
-            String commerceProvider = properties.getInherited(CommerceConstants.PN_COMMERCE_PROVIDER, String.class);
-            if (commerceProvider != null && !commerceProvider.equals("we-retail")) {
-                return null;
-            }
+        if (!isWeRetailPage(currentPage)) {
+            return null;
         }
 
         if (currentProduct == null) {
@@ -104,13 +111,6 @@ public class SimilarToCurrentRelationshipsProvider implements ProductRelationshi
         List<Product> contextProducts = new ArrayList<Product>();
         contextProducts.add(currentProduct);
 
-        //
-        // Walk content-pages to find similar products:
-        //
-        ResourceResolver resolver = request.getResourceResolver();
-        SimilarProductsCollector collector = new SimilarProductsCollector(resolver, session, RELATIONSHIP_TYPE, RELATIONSHIP_TITLE,
-                contextProducts);
-        collector.walk(resolver.getResource("/content/we-retail/language-masters/en/products"));
-        return collector.getRelationships();
+        return getSimilarProducts(request, session, contextProducts);
     }
 }
@@ -0,0 +1,83 @@
+package we.retail.core.productrelationships;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns tag IDs (such as <code>we-retail:season/winter</code>) to dense integers, so that the tags of a
+ * product can be kept as a sorted <code>int[]</code> and matched without allocating (see {@link TagMatcher}).
+ *
+ * Integers are never reused: a tag keeps its number for the lifetime of the dictionary.
+ */
+public class TagDictionary {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final List<String> tags = new ArrayList<String>();
+
+    /**
+     * Return the number of <code>tag</code>, assigning the next free one if the tag is new.
+     */
+    public int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id == null) {
+            synchronized (tags) {
+                id = ids.get(tag);
+                if (id == null) {
+                    id = tags.size();
+                    tags.add(tag);
+                    ids.put(tag, id);
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Return the sorted, duplicate-free numbers of the given tags.
+     */
+    public int[] intern(String[] tagArray) {
+        if (tagArray == null) {
+            return new int[0];
+        }
+        int[] result = new int[tagArray.length];
+        for (int i = 0; i < tagArray.length; i++) {
+            result[i] = intern(tagArray[i]);
+        }
+        Arrays.sort(result);
+
+        int length = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (length == 0 || result[length - 1] != result[i]) {
+                result[length++] = result[i];
+            }
+        }
+        return length == result.length ? result : Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Return the tag with the given number.
+     */
+    public String getTag(int id) {
+        synchronized (tags) {
+            return tags.get(id);
+        }
+    }
+
+    /**
+     * Return the tags with the first <code>count</code> numbers of <code>tagIds</code>, separated by commas.
+     */
+    public String join(int[] tagIds, int count) {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            buffer.append(getTag(tagIds[i]));
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package we.retail.core.productrelationships;
+
+
+/**
+ * Allocation-free matching of tag sets kept as sorted <code>int[]</code> (see {@link TagDictionary}).
+ */
+public final class TagMatcher {
+
+    private TagMatcher() {
+    }
+
+    /**
+     * Return the number of tags shared by two sorted tag sets.
+     *
+     * @param productTags the sorted tag numbers of a product
+     * @param contextTags the sorted tag numbers to match against
+     * @param matched     receives the shared tag numbers, in ascending order; may be <code>null</code> if only
+     *                    the count is of interest, otherwise must be able to hold the smaller of both sets
+     * @return the number of shared tags
+     */
+    public static int score(int[] productTags, int[] contextTags, int[] matched) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < productTags.length && j < contextTags.length) {
+            int a = productTags[i];
+            int b = contextTags[j];
+            if (a < b) {
+                i++;
+            } else if (a > b) {
+                j++;
+            } else {
+                if (matched != null) {
+                    matched[count] = a;
+                }
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+}
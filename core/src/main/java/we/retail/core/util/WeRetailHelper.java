@@ -2,17 +2,54 @@ package we.retail.core.util;
 
 import com.day.cq.wcm.api.NameConstants;
 import com.day.cq.wcm.api.Page;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ValueMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by Daniel on 09/03/16.
  */
 public class WeRetailHelper {
     private static final Logger LOGGER = LoggerFactory.getLogger(WeRetailHelper.class);
 
+    /**
+     * The path segment of the content node of a page or asset.
+     */
+    public static final String JCR_CONTENT_SEGMENT = "/jcr:content";
+
+    /**
+     * Tells if a path is the same as or a descendant of another path.
+     * @param ancestor  The possible ancestor.
+     * @param path      The path to be checked.
+     * @return          <code>true</code> if <code>path</code> equals <code>ancestor</code> or is below it.
+     *                  <code>false</code> otherwise.
+     */
+    public static boolean isAncestorOrSelf(final String ancestor, final String path) {
+        return path.equals(ancestor) || path.startsWith(ancestor + "/");
+    }
+
+    /**
+     * Opens a service resource resolver for a sub-service of the we.Retail core bundle.  The caller has to
+     * close it.
+     * @param resolverFactory   The resource resolver factory.
+     * @param subService        The sub-service, as mapped to a service user in the service user mapper.
+     * @return                  The service resource resolver.
+     * @throws LoginException   If the sub-service is not mapped or its user cannot log in.
+     */
+    public static ResourceResolver getServiceResourceResolver(final ResourceResolverFactory resolverFactory,
+                                                              final String subService) throws LoginException {
+        final Map<String, Object> authInfo = new HashMap<String, Object>();
+        authInfo.put(ResourceResolverFactory.SUBSERVICE, subService);
+        return resolverFactory.getServiceResourceResolver(authInfo);
+    }
+
     /**
      * Tells if a string is empty or contains only white space characters
      * (characters with a code greater than '\u0020').
@@ -0,0 +1,91 @@
+package we.retail.core;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShippingRatesTest {
+
+    private static final String GROUND = "/etc/commerce/shipping-methods/geometrixx-outdoors/ground";
+    private static final String OVERNIGHT = "/etc/commerce/shipping-methods/geometrixx-outdoors/overnight";
+
+    @Test
+    public void testCompilesTheRatesByMethodAndZone() {
+        ShippingRates.RateTable table = ShippingRates.compile(new String[] {
+                "ground|*|*|10.00",
+                " ground | eu | * | 15.00 ",
+                "overnight|*|*|40.00"
+        });
+
+        assertFalse(table.weightBased);
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 0));
+        assertEquals(new BigDecimal("15.00"), ShippingRates.getRate(table, "ground", "eu", 0));
+        assertEquals(new BigDecimal("40.00"), ShippingRates.getRate(table, "overnight", ShippingRates.DEFAULT_ZONE, 0));
+    }
+
+    @Test
+    public void testIgnoresInvalidEntries() {
+        ShippingRates.RateTable table = ShippingRates.compile(new String[] {
+                "ground|*|*",
+                "ground|*|heavy|10.00",
+                "ground|*|*|free",
+                "overnight|*|*|40.00"
+        });
+
+        assertNull(ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 0));
+        assertEquals(new BigDecimal("40.00"), ShippingRates.getRate(table, "overnight", ShippingRates.DEFAULT_ZONE, 0));
+    }
+
+    @Test
+    public void testFallsBackToTheDefaultZone() {
+        ShippingRates.RateTable table = ShippingRates.compile(new String[] {
+                "ground|*|*|10.00",
+                "ground|eu|*|15.00"
+        });
+
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getRate(table, "ground", "us", 0));
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getRate(table, "ground", null, 0));
+        assertNull(ShippingRates.getRate(table, "overnight", "eu", 0));
+    }
+
+    @Test
+    public void testLooksUpTheLightestTierTheWeightFitsIn() {
+        ShippingRates.RateTable table = ShippingRates.compile(new String[] {
+                "ground|*|*|30.00",
+                "ground|*|5|10.00",
+                "ground|*|20|20.00"
+        });
+
+        assertTrue(table.weightBased);
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 0));
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 5));
+        assertEquals(new BigDecimal("20.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 5.5));
+        assertEquals(new BigDecimal("20.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 20));
+        assertEquals(new BigDecimal("30.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 1000));
+    }
+
+    @Test
+    public void testAppliesTheHeaviestTierAboveTheLastOne() {
+        ShippingRates.RateTable table = ShippingRates.compile(new String[] {
+                "ground|*|5|10.00",
+                "ground|*|20|20.00"
+        });
+
+        assertEquals(new BigDecimal("20.00"), ShippingRates.getRate(table, "ground", ShippingRates.DEFAULT_ZONE, 20.5));
+    }
+
+    @Test
+    public void testChargesTheDefaultRates() {
+        assertEquals(new BigDecimal("10.00"), ShippingRates.getDefaultRate(GROUND, ShippingRates.DEFAULT_ZONE, 0));
+        assertEquals(new BigDecimal("40.00"), ShippingRates.getDefaultRate(OVERNIGHT, "eu", 100));
+        assertNull(ShippingRates.getDefaultRate("unknown", ShippingRates.DEFAULT_ZONE, 0));
+
+        // the rates are the default ones until the component is configured
+        assertEquals(new BigDecimal("40.00"), new ShippingRates().getRate(OVERNIGHT, ShippingRates.DEFAULT_ZONE, 0));
+    }
+}
@@ -0,0 +1,107 @@
+package we.retail.core.components.impl;
+
+import com.day.cq.dam.api.Asset;
+import com.day.cq.dam.api.Rendition;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+
+import java.awt.Dimension;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SizeAwareRenditionPickerTest {
+
+    private static final String ASSET = "/content/dam/we-retail/asset.jpg";
+
+    @Test
+    public void testPicksTheSmallestCoveringRendition() {
+        Rendition original = rendition("original", "image/jpeg", null);
+        Rendition thumbnail = rendition("cq5dam.thumbnail.319.319.png", "image/png", null);
+        Rendition web = rendition("cq5dam.web.1280.1280.jpeg", "image/jpeg", null);
+        Rendition medium = rendition("medium.jpeg", "image/jpeg", new Dimension(800, 400));
+        Asset asset = asset(new Dimension(2000, 1000), original, thumbnail, web, medium);
+
+        // the asset fits in 600 x 300: the thumbnail (319 x 160) is too small, the custom rendition is the smallest above
+        assertSame(medium, new SizeAwareRenditionPicker(600, 600).getRendition(asset));
+        // without the custom rendition, the web rendition (1280 x 640) is the only one still large enough
+        asset = asset(new Dimension(2000, 1000), original, thumbnail, web);
+        assertSame(web, new SizeAwareRenditionPicker(600, 600).getRendition(asset));
+        // a rendition which covers the requested size exactly is used
+        assertSame(thumbnail, new SizeAwareRenditionPicker(319, 160).getRendition(asset));
+    }
+
+    @Test
+    public void testFallsBackToTheOriginalWhenNoRenditionIsLargeEnough() {
+        Rendition original = rendition("original", "image/jpeg", null);
+        Rendition thumbnail = rendition("cq5dam.thumbnail.319.319.png", "image/png", null);
+        Rendition web = rendition("cq5dam.web.1280.1280.jpeg", "image/jpeg", null);
+        Asset asset = asset(new Dimension(2000, 1000), original, thumbnail, web);
+
+        assertSame(original, new SizeAwareRenditionPicker(1600, 1600).getRendition(asset));
+    }
+
+    @Test
+    public void testSkipsRenditionsWhichAreNotImagesOrHaveNoKnownSize() {
+        Rendition original = rendition("original", "image/jpeg", null);
+        Rendition text = rendition("cq5dam.text.1000.1000.txt", "text/plain", null);
+        Rendition unknown = rendition("custom.jpeg", "image/jpeg", null);
+        Rendition broken = rendition("broken.jpeg", "image/jpeg", new Dimension(0, 0));
+        Asset asset = asset(new Dimension(2000, 1000), original, text, unknown, broken);
+
+        assertSame(original, new SizeAwareRenditionPicker(600, 600).getRendition(asset));
+    }
+
+    @Test
+    public void testReadsTheOriginalSizeFromTheOriginalRendition() {
+        Rendition original = rendition("original", "image/jpeg", new Dimension(2000, 1000));
+        Rendition thumbnail = rendition("cq5dam.thumbnail.319.319.png", "image/png", null);
+        Rendition web = rendition("cq5dam.web.1280.1280.jpeg", "image/jpeg", null);
+        Asset asset = asset(null, original, thumbnail, web);
+
+        assertSame(web, new SizeAwareRenditionPicker(600, 600).getRendition(asset));
+    }
+
+    @Test
+    public void testFitNeverScalesUp() {
+        assertEquals(new Dimension(600, 300), SizeAwareRenditionPicker.fit(new Dimension(2000, 1000), 600, 600));
+        assertEquals(new Dimension(300, 600), SizeAwareRenditionPicker.fit(new Dimension(1000, 2000), 600, 600));
+        assertEquals(new Dimension(200, 100), SizeAwareRenditionPicker.fit(new Dimension(200, 100), 600, 600));
+    }
+
+    private static Asset asset(Dimension size, Rendition original, Rendition... renditions) {
+        Asset asset = mock(Asset.class);
+        when(asset.getPath()).thenReturn(ASSET);
+        if (size != null) {
+            when(asset.getMetadataValue("tiff:ImageWidth")).thenReturn(String.valueOf(size.width));
+            when(asset.getMetadataValue("tiff:ImageLength")).thenReturn(String.valueOf(size.height));
+        }
+        when(asset.getOriginal()).thenReturn(original);
+        List<Rendition> all = new ArrayList<Rendition>();
+        all.add(original);
+        all.addAll(Arrays.asList(renditions));
+        when(asset.getRenditions()).thenReturn(all);
+        return asset;
+    }
+
+    private static Rendition rendition(String name, String mimeType, Dimension size) {
+        Rendition rendition = mock(Rendition.class);
+        when(rendition.getName()).thenReturn(name);
+        when(rendition.getPath()).thenReturn(ASSET + "/jcr:content/renditions/" + name);
+        when(rendition.getMimeType()).thenReturn(mimeType);
+        Map<String, Object> properties = new HashMap<String, Object>();
+        if (size != null) {
+            properties.put("tiff:ImageWidth", String.valueOf(size.width));
+            properties.put("tiff:ImageLength", String.valueOf(size.height));
+        }
+        when(rendition.getProperties()).thenReturn(new ValueMapDecorator(properties));
+        return rendition;
+    }
+}
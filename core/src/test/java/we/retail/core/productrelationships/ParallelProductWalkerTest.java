@@ -0,0 +1,152 @@
+package we.retail.core.productrelationships;
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import com.day.cq.wcm.api.Page;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ParallelProductWalkerTest {
+
+    private static final String ROOT = "/etc/commerce/products/we-retail";
+
+    private ResourceResolver resolver;
+    private PageManager pageManager;
+    private TagDictionary tagDictionary;
+    private Product context;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = mock(ResourceResolver.class);
+        pageManager = mock(PageManager.class);
+        when(resolver.adaptTo(PageManager.class)).thenReturn(pageManager);
+        // the tasks walk with clones of the caller's resolver, which see the same tree
+        when(resolver.clone(null)).thenReturn(resolver);
+        tagDictionary = new TagDictionary();
+        context = product("/context", "context", "a", "b", "c").adaptTo(Product.class);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFindsTheSameProductsAsTheSerialWalk() throws Exception {
+        Resource root = folder(ROOT,
+                product(ROOT + "/top", "sku-top", "a"),
+                folder(ROOT + "/men",
+                        folder(ROOT + "/men/shirts",
+                                product(ROOT + "/men/shirts/one", "sku-1", "a", "b"),
+                                product(ROOT + "/men/shirts/two", "sku-2", "c"),
+                                product(ROOT + "/men/shirts/none", "sku-x", "x")),
+                        folder(ROOT + "/men/pants",
+                                product(ROOT + "/men/pants/three", "sku-3", "a", "b", "c"),
+                                // another presentation of sku-1, matching more tags
+                                product(ROOT + "/men/pants/one", "sku-1", "a", "b", "c"))),
+                folder(ROOT + "/women",
+                        product(ROOT + "/women/self", "context", "a", "b", "c"),
+                        folder(ROOT + "/women/activities",
+                                product(ROOT + "/women/activities/four", "sku-4", "a"))),
+                folder(ROOT + "/equipment",
+                        folder(ROOT + "/equipment/bikes",
+                                folder(ROOT + "/equipment/bikes/road",
+                                        product(ROOT + "/equipment/bikes/road/five", "sku-5", "b", "c"),
+                                        product(ROOT + "/equipment/bikes/road/six", "sku-6", "b")))));
+
+        SimilarProductsCollector serial = collector();
+        serial.walk(root);
+        SimilarProductsCollector parallel = collector();
+        assertTrue(new ParallelProductWalker(pool, 2).walk(parallel, ROOT));
+
+        List<String> expected = Arrays.asList(ROOT + "/men/pants/one", ROOT + "/men/pants/three",
+                ROOT + "/equipment/bikes/road/five", ROOT + "/men/shirts/two", ROOT + "/equipment/bikes/road/six",
+                ROOT + "/top");
+        assertEquals(expected, paths(serial.getRelationships()));
+        assertEquals(expected, paths(parallel.getRelationships()));
+        verify(resolver, atLeastOnce()).clone(null);
+    }
+
+    private SimilarProductsCollector collector() {
+        return new SimilarProductsCollector(resolver, null, "type", "title",
+                Collections.singletonList(context), 0, tagDictionary) {
+            @Override
+            protected ProductRelationship createRelationship(Product product, int rank, String matchedTags) {
+                ProductRelationship relationship = mock(ProductRelationship.class);
+                when(relationship.getProduct()).thenReturn(product);
+                return relationship;
+            }
+        };
+    }
+
+    private Resource folder(String path, Resource... children) {
+        Resource resource = resource(path, new HashMap<String, Object>());
+        final List<Resource> list = Arrays.asList(children);
+        when(resource.listChildren()).thenAnswer(new Answer<Iterator<Resource>>() {
+            public Iterator<Resource> answer(InvocationOnMock invocation) {
+                return list.iterator();
+            }
+        });
+        return resource;
+    }
+
+    private Resource product(String path, String sku, String... tags) throws CommerceException {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("cq:commerceType", "product");
+        Resource resource = resource(path, properties);
+        Product product = mock(Product.class);
+        when(product.getPath()).thenReturn(path);
+        when(product.getSKU()).thenReturn(sku);
+        when(product.getProperty("cq:tags", String[].class)).thenReturn(tags);
+        when(product.getBaseProduct()).thenReturn(product);
+        when(resource.adaptTo(Product.class)).thenReturn(product);
+
+        Page page = mock(Page.class);
+        when(page.getPath()).thenReturn(path.replace("/etc/commerce/products", "/content"));
+        when(pageManager.getContainingPage(resource)).thenReturn(page);
+        return resource;
+    }
+
+    private Resource resource(String path, Map<String, Object> properties) {
+        Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(resource.getValueMap()).thenReturn(new ValueMapDecorator(properties));
+        when(resource.listChildren()).thenReturn(Collections.<Resource>emptyList().iterator());
+        when(resolver.getResource(path)).thenReturn(resource);
+        return resource;
+    }
+
+    private static List<String> paths(List<ProductRelationship> relationships) {
+        List<String> paths = new ArrayList<String>();
+        for (ProductRelationship relationship : relationships) {
+            paths.add(relationship.getProduct().getPath());
+        }
+        return paths;
+    }
+}
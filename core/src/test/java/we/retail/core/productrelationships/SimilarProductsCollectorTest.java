@@ -0,0 +1,160 @@
+package we.retail.core.productrelationships;
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SimilarProductsCollectorTest {
+
+    private ResourceResolver resolver;
+    private TagDictionary tagDictionary;
+    private Product context;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = mock(ResourceResolver.class);
+        tagDictionary = new TagDictionary();
+        context = product("context", "a", "b", "c");
+    }
+
+    @Test
+    public void testRanksOnMatchedTagsThenSkuThenPath() throws Exception {
+        SimilarProductsCollector collector = collector(0);
+        collector.collect(Arrays.asList(
+                indexed("/p/one", "sku-b", "a"),
+                indexed("/p/two", "sku-c", "a", "b"),
+                indexed("/p/three", "sku-a", "a", "b", "x"),
+                indexed("/p/four", "sku-d", "a", "b", "c")));
+
+        assertEquals(Arrays.asList("/p/four", "/p/three", "/p/two", "/p/one"), paths(collector.getRelationships()));
+    }
+
+    @Test
+    public void testSkipsUnmatchedAndContextProducts() throws Exception {
+        SimilarProductsCollector collector = collector(0);
+        collector.collect(Arrays.asList(
+                indexed("/p/self", "context", "a", "b", "c"),
+                indexed("/p/none", "sku-x", "x", "y"),
+                indexed("/p/one", "sku-a", "c")));
+
+        assertEquals(Collections.singletonList("/p/one"), paths(collector.getRelationships()));
+    }
+
+    @Test
+    public void testKeepsBestCandidatePerSku() throws Exception {
+        SimilarProductsCollector collector = collector(0);
+        collector.collect(Arrays.asList(
+                indexed("/p/weak", "sku-a", "a"),
+                indexed("/p/strong", "sku-a", "a", "b")));
+
+        assertEquals(Collections.singletonList("/p/strong"), paths(collector.getRelationships()));
+    }
+
+    @Test
+    public void testReturnsAllCandidatesAtTheLimit() throws Exception {
+        SimilarProductsCollector collector = collector(2);
+        collector.collect(Arrays.asList(
+                indexed("/p/one", "sku-a", "a"),
+                indexed("/p/two", "sku-b", "a", "b")));
+
+        assertEquals(Arrays.asList("/p/two", "/p/one"), paths(collector.getRelationships()));
+    }
+
+    @Test
+    public void testKeepsOnlyTheBestCandidatesAboveTheLimit() throws Exception {
+        SimilarProductsCollector collector = collector(2);
+        collector.collect(Arrays.asList(
+                indexed("/p/one", "sku-a", "a"),
+                indexed("/p/two", "sku-b", "a", "b"),
+                indexed("/p/three", "sku-c", "a", "b", "c"),
+                indexed("/p/four", "sku-d", "c")));
+
+        assertEquals(Arrays.asList("/p/three", "/p/two"), paths(collector.getRelationships()));
+        // the candidates which do not make it into the result are never resolved
+        verify(resolver, never()).getResource("/p/one");
+        verify(resolver, never()).getResource("/p/four");
+    }
+
+    @Test
+    public void testBreaksTiesAtTheLimitOnSku() throws Exception {
+        List<ProductTagIndex.IndexedProduct> candidates = Arrays.asList(
+                indexed("/p/one", "sku-c", "a"),
+                indexed("/p/two", "sku-a", "a"),
+                indexed("/p/three", "sku-b", "a"));
+
+        SimilarProductsCollector collector = collector(1);
+        collector.collect(candidates);
+        assertEquals(Collections.singletonList("/p/two"), paths(collector.getRelationships()));
+
+        List<ProductTagIndex.IndexedProduct> reversed = new ArrayList<ProductTagIndex.IndexedProduct>(candidates);
+        Collections.reverse(reversed);
+        collector = collector(1);
+        collector.collect(reversed);
+        assertEquals(Collections.singletonList("/p/two"), paths(collector.getRelationships()));
+    }
+
+    @Test
+    public void testMatchesTheBestContextProduct() throws Exception {
+        Product other = product("other", "c", "d", "e");
+        SimilarProductsCollector collector = new SimilarProductsCollector(resolver, null, "type", "title",
+                Arrays.asList(context, other), 0, tagDictionary);
+
+        int[] buffer = new int[collector.getMatchBufferSize()];
+        int rank = collector.match(tagDictionary.intern(new String[] { "a", "d", "e", "z" }), buffer);
+        assertEquals(2, rank);
+        assertEquals("d,e", tagDictionary.join(buffer, rank));
+        assertEquals(0, collector.match(tagDictionary.intern(new String[] { "z" }), buffer));
+    }
+
+    private SimilarProductsCollector collector(int maxResults) {
+        return new SimilarProductsCollector(resolver, null, "type", "title",
+                Collections.singletonList(context), maxResults, tagDictionary) {
+            @Override
+            protected ProductRelationship createRelationship(Product product, int rank, String matchedTags) {
+                ProductRelationship relationship = mock(ProductRelationship.class);
+                when(relationship.getProduct()).thenReturn(product);
+                return relationship;
+            }
+        };
+    }
+
+    private ProductTagIndex.IndexedProduct indexed(String path, String sku, String... tags) throws CommerceException {
+        Product product = product(sku, tags);
+        when(product.getPath()).thenReturn(path);
+        Resource resource = mock(Resource.class);
+        when(resource.adaptTo(Product.class)).thenReturn(product);
+        when(resolver.getResource(path)).thenReturn(resource);
+        return new ProductTagIndex.IndexedProduct(path, sku, tags, tagDictionary.intern(tags));
+    }
+
+    private static Product product(String sku, String... tags) throws CommerceException {
+        Product product = mock(Product.class);
+        when(product.getSKU()).thenReturn(sku);
+        when(product.getProperty("cq:tags", String[].class)).thenReturn(tags);
+        when(product.getBaseProduct()).thenReturn(product);
+        return product;
+    }
+
+    private static List<String> paths(List<ProductRelationship> relationships) {
+        List<String> paths = new ArrayList<String>();
+        for (ProductRelationship relationship : relationships) {
+            paths.add(relationship.getProduct().getPath());
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,153 @@
+package we.retail.core.productrelationships;
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.CommerceSession;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SimilarToCartRelationshipsProviderTest {
+
+    private ResourceResolver resolver;
+    private SlingHttpServletRequest request;
+    private CommerceSession session;
+    private TagDictionary tagDictionary;
+    private SimilarToCartRelationshipsProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = mock(ResourceResolver.class);
+        when(resolver.adaptTo(PageManager.class)).thenReturn(mock(PageManager.class));
+        request = mock(SlingHttpServletRequest.class);
+        when(request.getResourceResolver()).thenReturn(resolver);
+        session = mock(CommerceSession.class);
+        tagDictionary = new TagDictionary();
+
+        provider = new SimilarToCartRelationshipsProvider();
+        provider.productTagIndex = mock(ProductTagIndex.class);
+        when(provider.productTagIndex.getTagDictionary()).thenReturn(tagDictionary);
+        provider.configure(new Hashtable<String, Object>());
+    }
+
+    @Test
+    public void testScoresAgainstEachBaseProductInTheCart() throws Exception {
+        Product shirt = product("/p/shirt", "shirt", "a", "b");
+        Product shirtVariant = product("/p/shirt/small", "shirt-small", "a", "b");
+        when(shirtVariant.getBaseProduct()).thenReturn(shirt);
+        Product pants = product("/p/pants", "pants", "c");
+        cart(shirt, shirtVariant, pants);
+        candidates(indexed("/p/jacket", "jacket", "a", "b"), indexed("/p/shorts", "shorts", "c"),
+                indexed("/p/hat", "hat", "a"));
+
+        List<ProductRelationship> relationships = provider.getRelationships(request, session, null, null);
+
+        assertEquals(Arrays.asList("/p/jacket", "/p/hat", "/p/shorts"), paths(relationships));
+        // the variant counts once, as its base product, and both base products are excluded
+        assertEquals(Arrays.asList("shirt", "pants"), new ArrayList<String>(getExclusionSKUs()));
+    }
+
+    @Test
+    public void testSkipsTheEntriesWhoseProductCannotBeRead() throws Exception {
+        Product shirt = product("/p/shirt", "shirt", "a");
+        Product broken = product("/p/broken", "broken", "c");
+        when(broken.getBaseProduct()).thenThrow(new CommerceException("broken"));
+        CommerceSession.CartEntry unreadable = mock(CommerceSession.CartEntry.class);
+        when(unreadable.getProduct()).thenThrow(new CommerceException("unreadable"));
+        List<CommerceSession.CartEntry> entries = new ArrayList<CommerceSession.CartEntry>();
+        entries.add(unreadable);
+        entries.add(entry(broken));
+        entries.add(entry(shirt));
+        when(session.getCartEntries()).thenReturn(entries);
+        candidates(indexed("/p/hat", "hat", "a"), indexed("/p/shorts", "shorts", "c"));
+
+        List<ProductRelationship> relationships = provider.getRelationships(request, session, null, null);
+
+        assertEquals(Collections.singletonList("/p/hat"), paths(relationships));
+        assertEquals(Collections.singletonList("shirt"), new ArrayList<String>(getExclusionSKUs()));
+    }
+
+    @Test
+    public void testProvidesNothingWithoutReadableCartEntries() throws Exception {
+        Product broken = product("/p/broken", "broken", "c");
+        when(broken.getBaseProduct()).thenThrow(new CommerceException("broken"));
+        cart(broken);
+
+        assertNull(provider.getRelationships(request, session, null, null));
+        verify(provider.productTagIndex, never()).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class));
+    }
+
+    private void cart(Product... products) throws CommerceException {
+        List<CommerceSession.CartEntry> entries = new ArrayList<CommerceSession.CartEntry>();
+        for (Product product : products) {
+            entries.add(entry(product));
+        }
+        when(session.getCartEntries()).thenReturn(entries);
+    }
+
+    private static CommerceSession.CartEntry entry(Product product) throws CommerceException {
+        CommerceSession.CartEntry entry = mock(CommerceSession.CartEntry.class);
+        when(entry.getProduct()).thenReturn(product);
+        return entry;
+    }
+
+    private void candidates(ProductTagIndex.IndexedProduct... candidates) {
+        when(provider.productTagIndex.getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class))).thenReturn(Arrays.asList(candidates));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<String> getExclusionSKUs() {
+        ArgumentCaptor<Collection> exclusionSKUs = ArgumentCaptor.forClass(Collection.class);
+        verify(provider.productTagIndex).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), exclusionSKUs.capture());
+        return exclusionSKUs.getValue();
+    }
+
+    private ProductTagIndex.IndexedProduct indexed(String path, String sku, String... tags) throws CommerceException {
+        Product product = product(path, sku, tags);
+        Resource resource = mock(Resource.class);
+        when(resource.adaptTo(Product.class)).thenReturn(product);
+        when(resolver.getResource(path)).thenReturn(resource);
+        return new ProductTagIndex.IndexedProduct(path, sku, tags, tagDictionary.intern(tags));
+    }
+
+    private static Product product(String path, String sku, String... tags) throws CommerceException {
+        Product product = mock(Product.class);
+        when(product.getPath()).thenReturn(path);
+        when(product.getSKU()).thenReturn(sku);
+        when(product.getProperty("cq:tags", String[].class)).thenReturn(tags);
+        when(product.getBaseProduct()).thenReturn(product);
+        return product;
+    }
+
+    private static List<String> paths(List<ProductRelationship> relationships) {
+        List<String> paths = new ArrayList<String>();
+        for (ProductRelationship relationship : relationships) {
+            paths.add(relationship.getProduct().getPath());
+        }
+        return paths;
+    }
+}
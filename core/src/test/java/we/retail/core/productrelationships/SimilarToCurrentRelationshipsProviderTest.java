@@ -0,0 +1,133 @@
+package we.retail.core.productrelationships;
+
+import com.adobe.cq.commerce.api.CommerceException;
+import com.adobe.cq.commerce.api.Product;
+import com.adobe.cq.commerce.api.ProductRelationship;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SimilarToCurrentRelationshipsProviderTest {
+
+    private ResourceResolver resolver;
+    private SlingHttpServletRequest request;
+    private TagDictionary tagDictionary;
+    private SimilarToCurrentRelationshipsProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = mock(ResourceResolver.class);
+        when(resolver.adaptTo(PageManager.class)).thenReturn(mock(PageManager.class));
+        request = mock(SlingHttpServletRequest.class);
+        when(request.getResourceResolver()).thenReturn(resolver);
+        tagDictionary = new TagDictionary();
+
+        provider = new SimilarToCurrentRelationshipsProvider();
+        provider.productTagIndex = mock(ProductTagIndex.class);
+        when(provider.productTagIndex.getTagDictionary()).thenReturn(tagDictionary);
+        List<ProductTagIndex.IndexedProduct> candidates = Arrays.asList(
+                indexed("/p/jacket", "jacket", "a", "b"),
+                indexed("/p/hat", "hat", "a"));
+        when(provider.productTagIndex.getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class))).thenReturn(candidates);
+    }
+
+    @Test
+    public void testServesTheRankingFromTheCache() throws Exception {
+        configure(500);
+        Product shirt = product("/p/shirt", "shirt", "a", "b");
+
+        List<String> expected = Arrays.asList("/p/jacket", "/p/hat");
+        assertEquals(expected, paths(provider.getRelationships(request, null, null, shirt)));
+        assertEquals(expected, paths(provider.getRelationships(request, null, null, shirt)));
+        verify(provider.productTagIndex, times(1)).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class));
+        assertEquals(1, provider.cache.getHits());
+        assertEquals(1, provider.cache.getMisses());
+    }
+
+    @Test
+    public void testSharesTheRankingBetweenTheVariantsOfAProduct() throws Exception {
+        configure(500);
+        Product shirt = product("/p/shirt", "shirt", "a", "b");
+        Product shirtVariant = product("/p/shirt/small", "shirt-small", "a", "b");
+        when(shirtVariant.getBaseProduct()).thenReturn(shirt);
+
+        provider.getRelationships(request, null, null, shirt);
+        provider.getRelationships(request, null, null, shirtVariant);
+        verify(provider.productTagIndex, times(1)).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testRanksAgainWhenTheIndexChanges() throws Exception {
+        configure(500);
+        Product shirt = product("/p/shirt", "shirt", "a", "b");
+
+        provider.getRelationships(request, null, null, shirt);
+        when(provider.productTagIndex.getGeneration()).thenReturn(1L);
+        provider.getRelationships(request, null, null, shirt);
+        verify(provider.productTagIndex, times(2)).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class));
+    }
+
+    @Test
+    public void testEvictsTheLeastRecentlyUsedProducts() throws Exception {
+        configure(1);
+        Product shirt = product("/p/shirt", "shirt", "a", "b");
+        Product pants = product("/p/pants", "pants", "a");
+
+        provider.getRelationships(request, null, null, shirt);
+        provider.getRelationships(request, null, null, pants);
+        provider.getRelationships(request, null, null, shirt);
+        verify(provider.productTagIndex, times(3)).getCandidates(eq(AbstractSimilarProductsProvider.PRODUCTS_ROOT),
+                anyCollectionOf(String.class), anyCollectionOf(String.class));
+    }
+
+    private void configure(int cacheSize) {
+        Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(SimilarToCurrentRelationshipsProvider.CACHE_SIZE, cacheSize);
+        provider.configure(properties);
+    }
+
+    private ProductTagIndex.IndexedProduct indexed(String path, String sku, String... tags) throws CommerceException {
+        Product product = product(path, sku, tags);
+        Resource resource = mock(Resource.class);
+        when(resource.adaptTo(Product.class)).thenReturn(product);
+        when(resolver.getResource(path)).thenReturn(resource);
+        return new ProductTagIndex.IndexedProduct(path, sku, tags, tagDictionary.intern(tags));
+    }
+
+    private static Product product(String path, String sku, String... tags) throws CommerceException {
+        Product product = mock(Product.class);
+        when(product.getPath()).thenReturn(path);
+        when(product.getSKU()).thenReturn(sku);
+        when(product.getProperty("cq:tags", String[].class)).thenReturn(tags);
+        when(product.getBaseProduct()).thenReturn(product);
+        return product;
+    }
+
+    private static List<String> paths(List<ProductRelationship> relationships) {
+        List<String> paths = new ArrayList<String>();
+        for (ProductRelationship relationship : relationships) {
+            paths.add(relationship.getProduct().getPath());
+        }
+        return paths;
+    }
+}
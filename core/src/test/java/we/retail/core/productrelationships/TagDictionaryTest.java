@@ -0,0 +1,42 @@
+package we.retail.core.productrelationships;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TagDictionaryTest {
+
+    @Test
+    public void testAssignsDenseStableNumbers() {
+        TagDictionary dictionary = new TagDictionary();
+        assertEquals(0, dictionary.intern("we-retail:season/winter"));
+        assertEquals(1, dictionary.intern("we-retail:activity/hiking"));
+        assertEquals(0, dictionary.intern("we-retail:season/winter"));
+        assertEquals("we-retail:activity/hiking", dictionary.getTag(1));
+    }
+
+    @Test
+    public void testInternsSortedDuplicateFreeSets() {
+        TagDictionary dictionary = new TagDictionary();
+        dictionary.intern("c");
+        dictionary.intern("a");
+        dictionary.intern("b");
+        assertArrayEquals(new int[] { 0, 1, 2 }, dictionary.intern(new String[] { "b", "c", "a", "c" }));
+    }
+
+    @Test
+    public void testInternsMissingTagsAsEmptySet() {
+        TagDictionary dictionary = new TagDictionary();
+        assertArrayEquals(new int[0], dictionary.intern((String[]) null));
+        assertArrayEquals(new int[0], dictionary.intern(new String[0]));
+    }
+
+    @Test
+    public void testJoinsMatchedTags() {
+        TagDictionary dictionary = new TagDictionary();
+        int[] ids = dictionary.intern(new String[] { "x", "y", "z" });
+        assertEquals("x,y", dictionary.join(ids, 2));
+        assertEquals("", dictionary.join(ids, 0));
+    }
+}
@@ -0,0 +1,42 @@
+package we.retail.core.productrelationships;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TagMatcherTest {
+
+    @Test
+    public void testCountsSharedTags() {
+        int[] matched = new int[3];
+        assertEquals(2, TagMatcher.score(new int[] { 1, 3, 5, 7 }, new int[] { 2, 3, 7 }, matched));
+        assertArrayEquals(new int[] { 3, 7, 0 }, matched);
+    }
+
+    @Test
+    public void testMatchesIdenticalSets() {
+        int[] matched = new int[3];
+        assertEquals(3, TagMatcher.score(new int[] { 0, 4, 9 }, new int[] { 0, 4, 9 }, matched));
+        assertArrayEquals(new int[] { 0, 4, 9 }, matched);
+    }
+
+    @Test
+    public void testScoresDisjointAndEmptySetsZero() {
+        assertEquals(0, TagMatcher.score(new int[] { 1, 2 }, new int[] { 3, 4 }, new int[2]));
+        assertEquals(0, TagMatcher.score(new int[0], new int[] { 3, 4 }, new int[0]));
+        assertEquals(0, TagMatcher.score(new int[] { 1, 2 }, new int[0], new int[0]));
+    }
+
+    @Test
+    public void testCountsWithoutBuffer() {
+        assertEquals(1, TagMatcher.score(new int[] { 2, 8 }, new int[] { 1, 8, 9 }, null));
+    }
+
+    @Test
+    public void testIsSymmetric() {
+        int[] a = { 1, 4, 6, 10, 12 };
+        int[] b = { 0, 4, 10, 11, 12, 13 };
+        assertEquals(TagMatcher.score(a, b, null), TagMatcher.score(b, a, null));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2016 Adobe Systems Incorporated
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package we.retail.it.tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.RowIterator;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.junit.annotations.SlingAnnotationsTestRunner;
+import org.apache.sling.junit.annotations.TestReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Server-side test checking that the queries run by we.Retail are backed by the indexes shipped in the
+ * ui.content package, and never traverse the repository.
+ *
+ * Plans do not depend on the permissions of the session, so the queries are explained in an anonymous
+ * session.
+ */
+@RunWith(SlingAnnotationsTestRunner.class)
+public class QueryPlanTest {
+
+    /**
+     * The queries run by we.Retail, each followed by the indexes which may serve it.  Queries followed by no
+     * index may be served by any index, as long as they do not traverse.
+     */
+    private static final String[][] QUERIES = {
+        // WeRetailCommerceSessionImpl: order status lookups, one and many orders at a time; these need the
+        // synchronous index, so that the orders just placed are found
+        { "/jcr:root/etc/commerce/orders//element(*)[@orderId = 'order-1']", "weRetailOrderId" },
+        { "/jcr:root/etc/commerce/orders//element(*)[@orderId = 'order-1' or @orderId = 'order-2']", "weRetailOrderId" },
+        // WeRetailCommerceSessionImpl: orders of a user, sorted in memory, which must list the orders just placed
+        { "/jcr:root/home/users/w/we-retail-test/commerce/orders//element(*)[@orderId]", "weRetailOrderId" },
+        // OrderStatusCache: initial load
+        { "/jcr:root/etc/commerce/orders//element(*)[@orderId]", "weRetailOrderId" },
+        // product pages of a product
+        { "/jcr:root/content/we-retail//element(*, cq:PageContent)[@cq:productMaster = '/etc/commerce/products/we-retail/en/men/shirts/eqbisumas']",
+                "weRetailProductMaster" },
+        // tagged products and pages, which the product indexes shipped with AEM may serve as well
+        { "/jcr:root/etc/commerce/products/we-retail//element(*, nt:unstructured)[@cq:tags = 'we-retail:activity/biking']" },
+        { "/jcr:root/content/we-retail//element(*, cq:PageContent)[@cq:tags = 'we-retail:activity/biking']" },
+        // ImagePrerenderer: pages referencing an asset
+        { "/jcr:root/content/we-retail//*[@fileReference = '/content/dam/we-retail/en/activities/biking/cycling_1.jpg']",
+                "weRetailCommerceLucene" }
+    };
+
+    @TestReference
+    private SlingRepository repository;
+
+    @Test
+    public void testQueriesAreIndexed() throws RepositoryException {
+        Session session = repository.login();
+        try {
+            QueryManager queryManager = session.getWorkspace().getQueryManager();
+            for (String[] query : QUERIES) {
+                String plan = getPlan(queryManager, query[0]);
+                assertFalse("Query traverses the repository: " + query[0] + "\nPlan: " + plan, plan.contains("traverse"));
+                if (query.length > 1) {
+                    List<String> indexes = Arrays.asList(query).subList(1, query.length);
+                    assertTrue("Query does not use any of the " + indexes + " indexes: " + query[0] + "\nPlan: " + plan,
+                            usesAny(plan, indexes));
+                }
+            }
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static boolean usesAny(String plan, List<String> indexes) {
+        for (String index : indexes) {
+            if (plan.contains(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getPlan(QueryManager queryManager, String statement) throws RepositoryException {
+        Query query = queryManager.createQuery("explain " + statement, Query.XPATH);
+        RowIterator rows = query.execute().getRows();
+        return rows.hasNext() ? rows.nextRow().getValue("plan").getString() : "";
+    }
+}
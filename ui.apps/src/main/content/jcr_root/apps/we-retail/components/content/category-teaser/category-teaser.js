@@ -35,8 +35,20 @@ use(function () {
 
         linkTo = linkTo + ".html";
     }
+
+    // offer the image in each of the supported widths
+    var srcset = [];
+    var imageWidths = sling.getService(Packages.we.retail.core.components.ImageWidths);
+    if (imageWidths) {
+        var widths = imageWidths.getWidths();
+        for (var i = 0; i < widths.length; i++) {
+            srcset.push(resource.path + ".img." + widths[i] + ".jpeg " + widths[i] + "w");
+        }
+    }
+
     return {
         imagePath: resource.path + ".img.jpeg",
+        imageSrcset: srcset.join(", "),
         buttonLinkTo: linkTo,
         buttonLabel: buttonLabel
     };
@@ -38,8 +38,7 @@ use(function () {
         , variationLead = baseProduct.getProperty("variationLead", java.lang.String)
         , variants = [];
 
-    var imageResource = baseProduct.getImage();
-    product.image = imageResource.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String);
+    product.image = getImageReference(baseProduct);
     product.name = baseProduct.getTitle();
     product.description = baseProduct.getDescription();
     product.price = commerceSession.getProductPrice(baseProduct);
@@ -84,12 +83,6 @@ use(function () {
     return product;
 
     function getProductProperties(product) {
-        var productImage = product.getImage();
-        var productImageResource = null;
-        if (productImage != null) {
-            productImageResource = resolver.getResource(productImage.getPath());
-        }
-
         return {
             path: product.getPath(),
             variants: product.getVariantAxes(),
@@ -102,8 +95,17 @@ use(function () {
             price: commerceSession.getProductPrice(product),
             summary: product.getProperty('summary', java.lang.String),
             features: product.getProperty("features", java.lang.String),
-            image: productImageResource != null ?
-                productImageResource.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : ""
+            image: getImageReference(product)
         };
     }
+
+    function getImageReference(product) {
+        // we.Retail products keep their image reference in their snapshot
+        if (product.getImageReference) {
+            return product.getImageReference();
+        }
+        var productImage = product.getImage();
+        return productImage != null ?
+            productImage.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : "";
+    }
 });
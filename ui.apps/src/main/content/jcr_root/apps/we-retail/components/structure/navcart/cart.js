@@ -52,14 +52,21 @@ use(function () {
     var iter = entries.iterator();
     while(iter.hasNext()) {
         var entry = iter.next();
-        var productImage = resolver.getResource(entry.product.getImage().getPath());
+        var image;
+        if (entry.product.getImageReference) {
+            // we.Retail products keep their image reference in their snapshot
+            image = entry.product.getImageReference();
+        } else {
+            var productImage = resolver.getResource(entry.product.getImage().getPath());
+            image = productImage != null ?
+                    productImage.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : "";
+        }
 
         _entries.push({
             entry: entry,
             product: entry.product,
             price: session.getProductPrice(entry.product),
-            image: productImage != null ?
-                   productImage.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : ""
+            image: image
         })
     }
 
@@ -121,12 +121,6 @@ use(["commerce_init.js"], function (commerceInit) {
         if (!product) {
             return null;
         }
-        var productImage;
-        var image = product.getImage()
-        if (image) {
-            productImage = resolver.getResource(image.getPath());
-        }
-
         return {
             path: product.getPath(),
             pagePath: product.getPagePath(),
@@ -140,8 +134,17 @@ use(["commerce_init.js"], function (commerceInit) {
             price: commerceSession.getProductPrice(product),
             summary: product.getProperty('summary', java.lang.String),
             features: product.getProperty("features", java.lang.String),
-            image: productImage != null ?
-                productImage.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : ""
+            image: getImageReference(product)
         };
     }
+
+    function getImageReference(product) {
+        // we.Retail products keep their image reference in their snapshot
+        if (product.getImageReference) {
+            return product.getImageReference();
+        }
+        var image = product.getImage();
+        return image != null ?
+            image.adaptTo(org.apache.sling.api.resource.ValueMap).get("fileReference", java.lang.String) : "";
+    }
 });
\ No newline at end of file
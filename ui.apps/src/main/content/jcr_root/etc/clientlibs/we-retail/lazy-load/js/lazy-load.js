@@ -19,6 +19,10 @@
     function loadImages() {
         $("img[data-lazy-src]").not("img[data-lazy-src][src]").each(function () {
             var $img = $(this);
+            var srcset = $img.data('lazySrcset');
+            if (srcset) {
+                $img.attr('srcset', srcset);
+            }
             $img.attr('src', $img.data('lazySrc'));
         });
     }